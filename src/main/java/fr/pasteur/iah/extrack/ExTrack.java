@@ -25,42 +25,77 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.Map;
+import java.util.List;
 import java.util.function.Consumer;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
-import Jama.Matrix;
 import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Model;
+import fr.pasteur.iah.extrack.compute.ExTrackComputeContext;
 import fr.pasteur.iah.extrack.compute.ExTrackDoPredictions;
+import fr.pasteur.iah.extrack.compute.ExTrackMultiStartOptimizer;
 import fr.pasteur.iah.extrack.compute.ExTrackParameterOptimizer;
 import fr.pasteur.iah.extrack.compute.ExTrackParameters;
+import fr.pasteur.iah.extrack.compute.ExTrackStreamPredictions;
+import fr.pasteur.iah.extrack.compute.TrackStore;
 import fr.pasteur.iah.extrack.util.ExTrackUtil;
 
 /**
  * User oriented class, that can call ExTrack feature in a simple manner. This
  * class is mainly aimed for scripting purposes.
+ * <p>
+ * The computations run on the threads of an {@link ExTrackComputeContext}.
+ * Unless one is given at construction, this class creates its own, which is
+ * released by {@link #close()}.
  * 
  * @author Jean-Yves Tinevez
  */
-public class ExTrack
+public class ExTrack implements AutoCloseable
 {
 
 	private final Model model;
 
 	private final Logger logger;
 
+	private final ExTrackComputeContext context;
+
+	/**
+	 * Whether the context was created by this instance, and must be closed
+	 * by it.
+	 */
+	private final boolean ownsContext;
+
 	public ExTrack( final Model model )
 	{
 		this( model, Logger.IJ_LOGGER );
 	}
 
 	public ExTrack( final Model model, final Logger logger )
+	{
+		this( model, logger, null );
+	}
+
+	/**
+	 * Creates an ExTrack facade that runs its computations on the specified
+	 * context.
+	 * 
+	 * @param model
+	 *            the model containing the tracks.
+	 * @param logger
+	 *            the logger to report to.
+	 * @param context
+	 *            the compute context, which is not closed by this instance.
+	 *            If <code>null</code>, a context using half of the available
+	 *            processors is created, and closed by {@link #close()}.
+	 */
+	public ExTrack( final Model model, final Logger logger, final ExTrackComputeContext context )
 	{
 		this.model = model;
 		this.logger = logger;
+		this.ownsContext = context == null;
+		this.context = ownsContext ? new ExTrackComputeContext() : context;
 	}
 
 	/**
@@ -84,9 +119,41 @@ public class ExTrack
 	public void computeProbabilities( final ExTrackParameters parameters )
 	{
 		final ExTrackDoPredictions predictions = new ExTrackDoPredictions( parameters, model, logger );
+		predictions.setComputeContext( context );
 		predictions.run();
 	}
 
+	/**
+	 * Computes the state probabilities of the localizations of a NumPy track
+	 * file and writes them to a file, without building a TrackMate model. The
+	 * file is processed a chunk at a time, so it can be larger than the
+	 * memory. See {@link ExTrackStreamPredictions}.
+	 * 
+	 * @param parameters
+	 *            the motility parameters.
+	 * @param inputFile
+	 *            the path to the NumPy file of the tracks, with the X, Y,
+	 *            frame and track ID columns.
+	 * @param outputFile
+	 *            the path to the output file, with the columns
+	 *            <code>x, y, frame, trackID, pStuck, pDiffusive</code>. A CSV
+	 *            file if it ends in '<code>.csv</code>', a NumPy file
+	 *            otherwise.
+	 * @param logger
+	 *            the logger to report progress to.
+	 * @throws IOException
+	 *             if the input file cannot be read or the output file cannot
+	 *             be written.
+	 */
+	public static final void computeProbabilities(
+			final ExTrackParameters parameters,
+			final String inputFile,
+			final String outputFile,
+			final Logger logger ) throws IOException
+	{
+		new ExTrackStreamPredictions( parameters, inputFile, outputFile, logger ).process();
+	}
+
 	/**
 	 * Estimates the motility parameters from the tracks in the model. This
 	 * estimation can take several minutes or be very long depending on the
@@ -103,14 +170,47 @@ public class ExTrack
 	 */
 	public ExTrackParameters estimateParameters( final ExTrackParameters startPoint )
 	{
-		final Map< Integer, Matrix > tracks = ExTrackUtil.toMatrix( model );
+		final TrackStore tracks = ExTrackUtil.toTrackStore( model );
 		final Consumer< double[] > valueWatcher = e -> {}; // do nothing.
 		final ExTrackParameterOptimizer optimizer = new ExTrackParameterOptimizer( startPoint, tracks, logger, valueWatcher );
+		optimizer.setComputeContext( context );
 		optimizer.run();
 		final ExTrackParameters optimum = optimizer.getParameters();
 		return optimum;
 	}
 
+	/**
+	 * Estimates the motility parameters from the tracks in the model,
+	 * starting from several start points, and returns the best optimum. This
+	 * helps when a single start point lands in a local optimum. The
+	 * optimizations run concurrently and share the same threads, and the
+	 * optimum of each of them is reported to the logger.
+	 * 
+	 * @param startPoints
+	 *            the estimation parameters to start from.
+	 * @return a new set of motility parameters, with the highest likelihood
+	 *         among the optima.
+	 */
+	public ExTrackParameters estimateParameters( final List< ExTrackParameters > startPoints )
+	{
+		final TrackStore tracks = ExTrackUtil.toTrackStore( model );
+		final ExTrackMultiStartOptimizer optimizer = new ExTrackMultiStartOptimizer( startPoints, tracks, logger, false );
+		optimizer.setComputeContext( context );
+		optimizer.run();
+		return optimizer.getBestParameters();
+	}
+
+	/**
+	 * Releases the threads of the compute context, if it was created by this
+	 * instance.
+	 */
+	@Override
+	public void close()
+	{
+		if ( ownsContext )
+			context.close();
+	}
+
 	/**
 	 * Save parameters to a JSon file.
 	 * 
@@ -0,0 +1,373 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fr.pasteur.iah.extrack.compute;
+
+import java.util.function.Consumer;
+
+import org.scijava.Cancelable;
+
+import fiji.plugin.trackmate.Logger;
+import pal.math.MFWithGradient;
+import pal.math.MultivariateFunction;
+import pal.math.MultivariateMinimum;
+
+/**
+ * Limited-memory quasi-Newton minimization of a function with a gradient,
+ * within the bounds of the function.
+ * <p>
+ * This is a projected L-BFGS: the search direction is built from the last
+ * {@link #memory} steps and gradient changes with the two-loop recursion,
+ * restricted to the parameters that are not held at a bound by the
+ * gradient. The step is then chosen by a backtracking line search on the
+ * projection of the search direction in the bounds, with the Armijo
+ * condition. A step covers at most 90% of the distance of a parameter to a
+ * bound, so parameters approach their bounds geometrically instead of
+ * landing on them. Each iteration costs one evaluation of the function and
+ * its gradient, plus one per backtracking step, which is rare once the
+ * curvature has been learned.
+ * <p>
+ * It needs far fewer evaluations than {@link ConjugateDirectionSearch}, but
+ * an evaluation with the gradient of the likelihood costs many plain ones,
+ * so it is not necessarily faster. See
+ * <code>OptimizerBenchmarkTestDrive</code> in the tests to compare both.
+ * <p>
+ * The function must implement {@link MFWithGradient}. Like
+ * {@link ConjugateDirectionSearch}, the optimization can be canceled and
+ * reports its progress to a logger.
+ */
+public class BoundedLBFGS extends MultivariateMinimum implements Cancelable
+{
+
+	/**
+	 * Fraction of the directional derivative that a step must achieve.
+	 */
+	private static final double ARMIJO = 1e-4;
+
+	private static final int MAX_BACKTRACKS = 40;
+
+	/**
+	 * Largest fraction of the distance to a bound that a parameter may cover
+	 * in one step. The likelihood depends on the square of the diffusion
+	 * lengths, so its gradient vanishes at their lower bound: a step that
+	 * lands there stalls the descent.
+	 */
+	private static final double BOUNDARY_FRACTION = 0.9;
+
+	/**
+	 * Number of past steps used to approximate the inverse Hessian. The
+	 * default is 5.
+	 */
+	public int memory = 5;
+
+	/**
+	 * Largest relative change of a parameter on the first iteration, and
+	 * after the memory is reset. The default is 0.5.
+	 */
+	public double step = 0.5;
+
+	private final Logger logger;
+
+	private final Consumer< double[] > valueWatcher;
+
+	private double[] x;
+
+	private boolean isCanceled;
+
+	private String cancelReason;
+
+	public BoundedLBFGS( final Logger logger, final Consumer< double[] > valueWatcher )
+	{
+		this.logger = logger;
+		this.valueWatcher = valueWatcher;
+	}
+
+	public double[] getCurrentValue()
+	{
+		return x;
+	}
+
+	@Override
+	public void optimize( final MultivariateFunction f, final double[] xvector, final double tolfx, final double tolx )
+	{
+		if ( !( f instanceof MFWithGradient ) )
+			throw new IllegalArgumentException( "BoundedLBFGS requires a function that implements MFWithGradient." );
+		final MFWithGradient fun = ( MFWithGradient ) f;
+
+		cancelReason = null;
+		isCanceled = false;
+
+		x = xvector;
+		final int dim = fun.getNumArguments();
+		final double[] lower = new double[ dim ];
+		final double[] upper = new double[ dim ];
+		for ( int i = 0; i < dim; i++ )
+		{
+			lower[ i ] = fun.getLowerBound( i );
+			upper[ i ] = fun.getUpperBound( i );
+		}
+		project( x, lower, upper );
+
+		double[] g = new double[ dim ];
+		double fx = fun.evaluate( x, g );
+		numFun = 1;
+		stopCondition( fx, x, tolfx, tolx, true );
+
+		logger.log( "\n------------- Optimization process started -----------\n" );
+		logger.log( "... Optimizer settings:\n" );
+		logger.log( "... L-BFGS memory:  " + memory + '\n' );
+		logger.log( "...    tolx:  " + tolx + '\n' );
+		logger.log( "...   tolfx:  " + tolfx + '\n' );
+		logger.log( "...  maxFun:  " + maxFun + '\n' );
+
+		// Circular history of steps s and gradient changes y.
+		final double[][] S = new double[ memory ][ dim ];
+		final double[][] Y = new double[ memory ][ dim ];
+		final double[] rho = new double[ memory ];
+		final double[] alpha = new double[ memory ];
+		int nPairs = 0;
+		int newest = -1;
+
+		final boolean[] free = new boolean[ dim ];
+		final double[] d = new double[ dim ];
+		final double[] xNew = new double[ dim ];
+		double[] gNew = new double[ dim ];
+		int iteration = 0;
+		int kt = 0;
+		while ( true )
+		{
+			if ( isCanceled )
+				return;
+
+			/*
+			 * Free parameters: the ones not held at a bound by the gradient.
+			 */
+
+			double maxG = 0.;
+			for ( int i = 0; i < dim; i++ )
+			{
+				free[ i ] = !( ( x[ i ] <= lower[ i ] && g[ i ] > 0. ) || ( x[ i ] >= upper[ i ] && g[ i ] < 0. ) );
+				if ( free[ i ] )
+					maxG = Math.max( maxG, Math.abs( g[ i ] ) );
+			}
+			if ( maxG == 0. )
+			{
+				logger.log( "\nProjected gradient is zero.\n" );
+				break;
+			}
+
+			/*
+			 * Search direction, with the two-loop recursion.
+			 */
+
+			for ( int i = 0; i < dim; i++ )
+				d[ i ] = free[ i ] ? g[ i ] : 0.;
+			for ( int p = 0; p < nPairs; p++ )
+			{
+				final int m = ( newest - p + memory ) % memory;
+				alpha[ m ] = rho[ m ] * dot( S[ m ], d );
+				for ( int i = 0; i < dim; i++ )
+					d[ i ] -= alpha[ m ] * Y[ m ][ i ];
+			}
+			if ( nPairs > 0 )
+			{
+				final double gamma = dot( S[ newest ], Y[ newest ] ) / dot( Y[ newest ], Y[ newest ] );
+				for ( int i = 0; i < dim; i++ )
+					d[ i ] *= gamma;
+			}
+			for ( int p = nPairs - 1; p >= 0; p-- )
+			{
+				final int m = ( newest - p + memory ) % memory;
+				final double beta = rho[ m ] * dot( Y[ m ], d );
+				for ( int i = 0; i < dim; i++ )
+					d[ i ] += S[ m ][ i ] * ( alpha[ m ] - beta );
+			}
+			double slope = 0.;
+			for ( int i = 0; i < dim; i++ )
+			{
+				d[ i ] = free[ i ] ? -d[ i ] : 0.;
+				slope += d[ i ] * g[ i ];
+			}
+			if ( slope >= 0. )
+			{
+				// Not a descent direction: forget the curvature.
+				nPairs = 0;
+				for ( int i = 0; i < dim; i++ )
+					d[ i ] = free[ i ] ? -g[ i ] : 0.;
+			}
+
+			/*
+			 * Backtracking line search on the projected path.
+			 */
+
+			double t = 1.;
+			if ( nPairs == 0 )
+			{
+				double maxRelChange = 0.;
+				for ( int i = 0; i < dim; i++ )
+					maxRelChange = Math.max( maxRelChange, Math.abs( d[ i ] ) / Math.max( Math.abs( x[ i ] ), tolx ) );
+				t = Math.min( 1., step / maxRelChange );
+			}
+
+			double fNew = Double.NaN;
+			boolean accepted = false;
+			boolean moved = false;
+			for ( int b = 0; b < MAX_BACKTRACKS; b++ )
+			{
+				double decrease = 0.;
+				moved = false;
+				for ( int i = 0; i < dim; i++ )
+				{
+					final double lo = x[ i ] - BOUNDARY_FRACTION * ( x[ i ] - lower[ i ] );
+					final double hi = x[ i ] + BOUNDARY_FRACTION * ( upper[ i ] - x[ i ] );
+					xNew[ i ] = Math.min( hi, Math.max( lo, x[ i ] + t * d[ i ] ) );
+					decrease += g[ i ] * ( xNew[ i ] - x[ i ] );
+					moved |= xNew[ i ] != x[ i ];
+				}
+				if ( !moved )
+					break;
+
+				fNew = fun.evaluate( xNew, gNew );
+				numFun++;
+				if ( fNew <= fx + ARMIJO * decrease )
+				{
+					accepted = true;
+					break;
+				}
+				t *= 0.5;
+			}
+
+			if ( !accepted )
+			{
+				if ( nPairs > 0 )
+				{
+					// Retry along the gradient before giving up.
+					nPairs = 0;
+					continue;
+				}
+				logger.log( "\nLine search could not decrease the function further.\n" );
+				break;
+			}
+
+			/*
+			 * Update the curvature pairs.
+			 */
+
+			final int next = ( newest + 1 ) % memory;
+			double sy = 0.;
+			double yy = 0.;
+			for ( int i = 0; i < dim; i++ )
+			{
+				S[ next ][ i ] = xNew[ i ] - x[ i ];
+				Y[ next ][ i ] = gNew[ i ] - g[ i ];
+				sy += S[ next ][ i ] * Y[ next ][ i ];
+				yy += Y[ next ][ i ] * Y[ next ][ i ];
+			}
+			if ( sy > 1e-10 * yy )
+			{
+				rho[ next ] = 1. / sy;
+				newest = next;
+				nPairs = Math.min( nPairs + 1, memory );
+			}
+
+			System.arraycopy( xNew, 0, x, 0, dim );
+			final double[] tmp = g;
+			g = gNew;
+			gNew = tmp;
+			fx = fNew;
+			iteration++;
+
+			print( fx, iteration );
+			if ( valueWatcher != null )
+				valueWatcher.accept( x );
+			if ( isCanceled )
+				return;
+
+			if ( stopCondition( fx, x, tolfx, tolx, false ) )
+				kt++;
+			else
+				kt = 0;
+			if ( kt > 1 )
+				break;
+
+			if ( ( maxFun > 0 ) && ( numFun > maxFun ) )
+			{
+				logger.log( "\nMaximum number of function calls reached.\n" );
+				break;
+			}
+		}
+
+		vecprint( "\nFinal solution is ...", x );
+		logger.log( String.format( "\nMaximum likelihood of the tracks: %11.6g", -fx ) );
+		logger.log( " after " + numFun + " function and gradient calls.\n" );
+	}
+
+	private static void project( final double[] p, final double[] lower, final double[] upper )
+	{
+		for ( int i = 0; i < p.length; i++ )
+			p[ i ] = Math.min( upper[ i ], Math.max( lower[ i ], p[ i ] ) );
+	}
+
+	private static double dot( final double[] a, final double[] b )
+	{
+		double sum = 0.;
+		for ( int i = 0; i < a.length; i++ )
+			sum += a[ i ] * b[ i ];
+		return sum;
+	}
+
+	private void print( final double fx, final int iteration )
+	{
+		logger.log( String.format( "Maximum likelihood of the tracks: %11.6g\n", -fx ) );
+		logger.log( "After " + numFun + " function and gradient calls." + '\n' );
+		logger.log( "Including " + iteration + " iterations." + '\n' );
+		vecprint( "Current values of x ...", x );
+	}
+
+	private void vecprint( final String s, final double[] p )
+	{
+		logger.log( s );
+		logger.log( String.format( "%8.3g", p[ 0 ] ) );
+		for ( int i = 1; i < p.length; i++ )
+			logger.log( String.format( "; %8.3g", p[ i ] ) );
+
+		logger.log( "\n" );
+	}
+
+	@Override
+	public boolean isCanceled()
+	{
+		return isCanceled;
+	}
+
+	@Override
+	public void cancel( final String reason )
+	{
+		this.cancelReason = reason;
+		isCanceled = true;
+	}
+
+	@Override
+	public String getCancelReason()
+	{
+		return cancelReason;
+	}
+}
@@ -36,6 +36,11 @@
 
 package fr.pasteur.iah.extrack.compute;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.function.Consumer;
 
 import org.scijava.Cancelable;
@@ -120,6 +125,32 @@ public class ConjugateDirectionSearch extends MultivariateMinimum implements Can
 	 */
 	public boolean interrupt = false;
 
+	/**
+	 * speculation is the number of points of a line search that may be
+	 * evaluated concurrently. When larger than 1, the candidate points that
+	 * the line search may need next are evaluated ahead, together with the
+	 * point it needs now, so that an evaluation that does not use all the
+	 * cores can overlap with others. The search visits the same points and
+	 * gives the same result, at the cost of some evaluations that are not
+	 * used. The function must then be thread-safe. The default is 1, no
+	 * speculation. Speculation also requires a {@link #speculationExecutor}.
+	 */
+	public int speculation = 1;
+
+	/**
+	 * speculationExecutor runs the speculative evaluations. It should be the
+	 * pool that also runs the work of the function, so that speculation does
+	 * not add threads on top of it. The optimizer does not shut it down.
+	 * Without one, there is no speculation.
+	 */
+	public ExecutorService speculationExecutor = null;
+
+	/**
+	 * Runs the speculative evaluations. Only set during an optimization with
+	 * speculation.
+	 */
+	private ExecutorService speculationService;
+
 	// implementation of abstract method
 
 	public double[] getCurrentValue()
@@ -129,6 +160,19 @@ public class ConjugateDirectionSearch extends MultivariateMinimum implements Can
 
 	@Override
 	public void optimize( final MultivariateFunction f, final double[] xvector, final double tolfx, final double tolx )
+	{
+		speculationService = ( speculation > 1 ) ? speculationExecutor : null;
+		try
+		{
+			search( f, xvector, tolfx, tolx );
+		}
+		finally
+		{
+			speculationService = null;
+		}
+	}
+
+	private void search( final MultivariateFunction f, final double[] xvector, final double tolfx, final double tolx )
 	{
 		cancelReason = null;
 		isCanceled = false;
@@ -579,26 +623,68 @@ public class ConjugateDirectionSearch extends MultivariateMinimum implements Can
 	}
 
 	private double flin( final double l, final int j )
+	{
+		linePoint( l, j, tflin );
+		numFun++;
+		return fun.evaluate( tflin );
+	}
+
+	/**
+	 * Evaluates the function at several points of the line search
+	 * concurrently. The first point is evaluated in the calling thread.
+	 */
+	private double[] flin( final int j, final double... ls )
+	{
+		final int n = ls.length;
+		final double[][] points = new double[ n ][ dim ];
+		for ( int p = 0; p < n; p++ )
+			linePoint( ls[ p ], j, points[ p ] );
+		numFun += n;
+
+		final List< Future< Double > > futures = new ArrayList<>( n - 1 );
+		for ( int p = 1; p < n; p++ )
+		{
+			final double[] point = points[ p ];
+			futures.add( speculationService.submit( () -> Double.valueOf( fun.evaluate( point ) ) ) );
+		}
+
+		final double[] values = new double[ n ];
+		values[ 0 ] = fun.evaluate( points[ 0 ] );
+		for ( int p = 1; p < n; p++ )
+		{
+			try
+			{
+				values[ p ] = futures.get( p - 1 ).get().doubleValue();
+			}
+			catch ( InterruptedException | ExecutionException e )
+			{
+				throw new OptimizationError( "Speculative evaluation failed: " + e.getMessage() );
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Computes the point at the specified position of the line search.
+	 */
+	private void linePoint( final double l, final int j, final double[] point )
 	{
 		if ( j != -1 )
 		{ /* linear search */
 			for ( int i = 0; i < dim; i++ )
-				tflin[ i ] = x[ i ] + l * v[ i ][ j ];
+				point[ i ] = x[ i ] + l * v[ i ][ j ];
 		}
 		else
 		{ /* search along parabolic space curve */
-			qa = l * ( l - qd1 ) / ( qd0 * ( qd0 + qd1 ) );
-			qb = ( l + qd0 ) * ( qd1 - l ) / ( qd0 * qd1 );
-			qc = l * ( l + qd0 ) / ( qd1 * ( qd0 + qd1 ) );
+			final double pa = l * ( l - qd1 ) / ( qd0 * ( qd0 + qd1 ) );
+			final double pb = ( l + qd0 ) * ( qd1 - l ) / ( qd0 * qd1 );
+			final double pc = l * ( l + qd0 ) / ( qd1 * ( qd0 + qd1 ) );
 
 			for ( int i = 0; i < dim; i++ )
-				tflin[ i ] = qa * q0[ i ] + qb * x[ i ] + qc * q1[ i ];
+				point[ i ] = pa * q0[ i ] + pb * x[ i ] + pc * q1[ i ];
 		}
 
-		checkBounds( tflin );
-
-		numFun++;
-		return fun.evaluate( tflin );
+		checkBounds( point );
 	}
 
 	private void checkBounds( final double[] p )
@@ -664,10 +750,35 @@ public class ConjugateDirectionSearch extends MultivariateMinimum implements Can
 			xm = min2;
 			fm = f1;
 		}
+		/*
+		 * Values of the second bracketing point evaluated ahead, if any, for
+		 * f0 < f1 and for f0 >= f1. NaN if not evaluated.
+		 */
+		double[] bracket = null;
 		if ( !fk || Math.abs( min2 ) < t2 )
 		{
 			min2 = ( min2 > 0 ? t2 : -t2 );
-			f1 = flin( min2, j );
+			if ( dz && speculationService != null )
+			{
+				// The second point depends on f1: evaluate the candidates
+				// that fit in the speculation, the step forward first.
+				if ( speculation > 2 )
+				{
+					final double[] fs = flin( j, min2, -( min2 ), 2 * ( min2 ) );
+					f1 = fs[ 0 ];
+					bracket = new double[] { fs[ 1 ], fs[ 2 ] };
+				}
+				else
+				{
+					final double[] fs = flin( j, min2, 2 * ( min2 ) );
+					f1 = fs[ 0 ];
+					bracket = new double[] { Double.NaN, fs[ 1 ] };
+				}
+			}
+			else
+			{
+				f1 = flin( min2, j );
+			}
 			if ( interrupt )
 				return;
 		}
@@ -683,7 +794,9 @@ public class ConjugateDirectionSearch extends MultivariateMinimum implements Can
 			if ( dz )
 			{
 				x2 = ( f0 < f1 ? -( min2 ) : 2 * ( min2 ) );
-				f2 = flin( x2, j );
+				final double ahead = ( bracket == null ) ? Double.NaN : ( f0 < f1 ? bracket[ 0 ] : bracket[ 1 ] );
+				bracket = null;
+				f2 = Double.isNaN( ahead ) ? flin( x2, j ) : ahead;
 				if ( interrupt )
 					return;
 
@@ -713,6 +826,9 @@ public class ConjugateDirectionSearch extends MultivariateMinimum implements Can
 
 			gotoNext = false;
 
+			// Values of the next halvings evaluated ahead, if any.
+			double[] halvings = null;
+			int nextHalving = 0;
 			while ( ( k < nits ) && ( f2 > f0 ) )
 			{
 				k++;
@@ -722,8 +838,23 @@ public class ConjugateDirectionSearch extends MultivariateMinimum implements Can
 					break;
 				}
 
+				if ( speculationService != null && halvings == null )
+				{
+					// The loop can only go on halving x2.
+					final double[] ls = new double[ Math.min( speculation, nits - k + 1 ) ];
+					double l = x2;
+					for ( int p = 0; p < ls.length; p++ )
+					{
+						l *= 0.5;
+						ls[ p ] = l;
+					}
+					halvings = flin( j, ls );
+				}
+
 				x2 *= 0.5;
-				f2 = flin( x2, j );
+				f2 = ( halvings != null && nextHalving < halvings.length )
+						? halvings[ nextHalving++ ]
+						: flin( x2, j );
 				if ( interrupt )
 					return;
 			}
@@ -0,0 +1,105 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fr.pasteur.iah.extrack.compute;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Owns the threads used by the ExTrack computations.
+ * <p>
+ * A context holds one work-stealing pool, sized once, that likelihood
+ * functions, optimizers and the {@link fr.pasteur.iah.extrack.ExTrack}
+ * facade can share instead of each creating their own. Closing the context
+ * shuts the pool down: the tasks already submitted complete, and the
+ * threads are released. A context must not be used after it is closed.
+ * <p>
+ * Typical use:
+ *
+ * <pre>
+ * try (ExTrackComputeContext context = new ExTrackComputeContext( 8 ))
+ * {
+ * 	optimizer.setComputeContext( context );
+ * 	optimizer.run();
+ * }
+ * </pre>
+ */
+public class ExTrackComputeContext implements AutoCloseable
+{
+
+	private final ForkJoinPool pool;
+
+	/**
+	 * Creates a context using half of the available processors.
+	 */
+	public ExTrackComputeContext()
+	{
+		this( Runtime.getRuntime().availableProcessors() / 2 );
+	}
+
+	/**
+	 * Creates a context with the specified number of threads.
+	 *
+	 * @param numThreads
+	 *            the number of threads. Values lower than 1 are replaced by
+	 *            1.
+	 */
+	public ExTrackComputeContext( final int numThreads )
+	{
+		this.pool = new ForkJoinPool( Math.max( 1, numThreads ) );
+	}
+
+	/**
+	 * Returns the pool of this context.
+	 *
+	 * @return the pool.
+	 */
+	public ForkJoinPool getPool()
+	{
+		return pool;
+	}
+
+	/**
+	 * Returns the number of threads of this context.
+	 *
+	 * @return the number of threads.
+	 */
+	public int getNumThreads()
+	{
+		return pool.getParallelism();
+	}
+
+	/**
+	 * Returns whether this context was closed.
+	 *
+	 * @return <code>true</code> if the context was closed.
+	 */
+	public boolean isClosed()
+	{
+		return pool.isShutdown();
+	}
+
+	@Override
+	public void close()
+	{
+		pool.shutdown();
+	}
+}
@@ -21,25 +21,47 @@
  */
 package fr.pasteur.iah.extrack.compute;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import Jama.Matrix;
 import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Spot;
-import fiji.plugin.trackmate.TrackModel;
 import fr.pasteur.iah.extrack.trackmate.ExTrackProbabilitiesFeature;
+import fr.pasteur.iah.extrack.util.TrackCache;
 
+/**
+ * Computes the state probabilities of the spots of all the tracks of a model.
+ * <p>
+ * The tracks are evaluated concurrently on the pool of a compute context,
+ * the longest first. The probabilities are buffered in two arrays aligned
+ * with the localizations of a {@link TrackStore}, and are written back to the
+ * spots in one step on the calling thread once all the tracks are done, so
+ * that the spots and the model are only touched by one thread.
+ */
 public class ExTrackDoPredictions implements Runnable
 {
 
+	/**
+	 * Interval between two progress reports, in milliseconds.
+	 */
+	private static final long PROGRESS_INTERVAL = 200;
+
 	private final ExTrackParameters params;
 
 	private final Logger logger;
 
 	private final Model model;
 
+	/**
+	 * Compute context shared with other computations. <code>null</code> if
+	 * each run creates its own.
+	 */
+	private ExTrackComputeContext context;
+
 	public ExTrackDoPredictions(
 			final ExTrackParameters params,
 			final Model model,
@@ -50,15 +72,45 @@ public class ExTrackDoPredictions implements Runnable
 		this.logger = logger;
 	}
 
+	/**
+	 * Makes the predictions run on the pool of the specified context. The
+	 * context is not closed by this instance. By default, each run creates
+	 * its own context and closes it when done.
+	 *
+	 * @param context
+	 *            the compute context, or <code>null</code> to create one per
+	 *            run.
+	 */
+	public void setComputeContext( final ExTrackComputeContext context )
+	{
+		this.context = context;
+	}
+
+	/**
+	 * Computes the predictions and writes them to the spots.
+	 *
+	 * @throws java.util.concurrent.CompletionException
+	 *             if the predictions of a track failed or if the computation
+	 *             was interrupted. The spots are then left unchanged.
+	 */
 	@Override
 	public void run()
+	{
+		// Without a shared context, the threads only live for this run.
+		try (final ExTrackComputeContext ownContext = ( context == null ) ? new ExTrackComputeContext() : null)
+		{
+			predict( ( context == null ) ? ownContext : context );
+		}
+	}
+
+	private void predict( final ExTrackComputeContext runContext )
 	{
 		final int nbSubSteps = params.nbSubteps;
 		final int frameLen = params.nFrames;
 		final boolean doFrame = true;
 		final boolean doPred = true;
 
-		final TrackState trackState = new TrackState(
+		final FlatTrackState trackState = new FlatTrackState(
 				params.localizationError,
 				params.diffusionLength0,
 				params.diffusionLength1,
@@ -69,35 +121,79 @@ public class ExTrackDoPredictions implements Runnable
 				frameLen,
 				doPred );
 
-		final TrackModel trackModel = model.getTrackModel();
-		final int nTracks = trackModel.nTracks( true );
-		int index = 0;
-		for ( final Integer trackID : trackModel.trackIDs( true ) )
+		// Extracted tracks, with their spots in the same order.
+		final TrackCache.Snapshot tracks = TrackCache.get( model ).getTracks( model );
+		final TrackStore store = tracks.getTrackStore();
+		final int nTracks = store.size();
+
+		/*
+		 * Longest tracks first, split in chunks of similar cost.
+		 */
+
+		final Integer[] order = new Integer[ nTracks ];
+		for ( int t = 0; t < nTracks; t++ )
+			order[ t ] = Integer.valueOf( t );
+		Arrays.sort( order, Comparator.comparingInt( ( final Integer t ) -> store.nbLocs( t.intValue() ) ).reversed() );
+		final long[] costs = new long[ nTracks ];
+		for ( int i = 0; i < nTracks; i++ )
+			costs[ i ] = FlatTrackState.cost( store.nbLocs( order[ i ].intValue() ), nbSubSteps, doFrame, frameLen );
+		final int[] starts = NegativeLikelihoodFunction.chunkStarts( costs, runContext.getNumThreads() );
+
+		/*
+		 * Compute the predictions in buffers aligned with the localizations.
+		 */
+
+		final double[] stuckProbas = new double[ store.nLocalizations() ];
+		final double[] diffusiveProbas = new double[ store.nLocalizations() ];
+		// Grows to the size of the largest track as we go.
+		final ThreadLocal< TrackStateWorkspace > workspaces = ThreadLocal.withInitial( () -> new TrackStateWorkspace( 2, 1, 1 ) );
+		final AtomicInteger nDone = new AtomicInteger();
+		final int nChunks = starts.length - 1;
+		final TaskGroup tasks = new TaskGroup( runContext.getPool(), nChunks );
+		for ( int c = 0; c < nChunks; c++ )
 		{
-			final List< Spot > track = new ArrayList<>( trackModel.trackSpots( trackID ) );
-			track.sort( Spot.frameComparator );
+			final int from = starts[ c ];
+			final int to = starts[ c + 1 ];
+			tasks.submit( () -> {
+				final TrackStateWorkspace workspace = workspaces.get();
+				for ( int i = from; i < to; i++ )
+				{
+					final int t = order[ i ].intValue();
+					final Matrix predictions = trackState.predict( store, t, workspace );
+					final int offset = store.offset( t );
+					for ( int r = 0; r < store.nbLocs( t ); r++ )
+					{
+						stuckProbas[ offset + r ] = predictions.get( r, 0 );
+						diffusiveProbas[ offset + r ] = predictions.get( r, 1 );
+					}
+					nDone.incrementAndGet();
+				}
+			} );
+		}
 
-			final Matrix C = new Matrix( track.size(), 2 );
-			for ( int r = 0; r < track.size(); r++ )
-			{
-				final Spot spot = track.get( r );
-				C.set( r, 0, spot.getDoublePosition( 0 ) );
-				C.set( r, 1, spot.getDoublePosition( 1 ) );
-			}
+		/*
+		 * Report progress from this thread while the tasks run. If a task
+		 * failed, the buffers miss some tracks: the failure is thrown before
+		 * anything is written to the spots.
+		 */
+		while ( !tasks.join( PROGRESS_INTERVAL, TimeUnit.MILLISECONDS ) )
+			logger.setProgress( ( double ) nDone.get() / nTracks );
 
-			final Matrix[] matrices = trackState.eval( C );
-			final Matrix predictions = matrices[ 1 ];
+		/*
+		 * Write the predictions back to the spots.
+		 */
 
-			for ( int r = 0; r < track.size(); r++ )
+		for ( int t = 0; t < nTracks; t++ )
+		{
+			final int offset = store.offset( t );
+			final Spot[] spots = tracks.getSpots( t );
+			for ( int r = 0; r < spots.length; r++ )
 			{
-				final double stuckProba = predictions.get( r, 0 );
-				final double diffusiveProba = predictions.get( r, 1 );
-
-				final Spot spot = track.get( r );
-				spot.putFeature( ExTrackProbabilitiesFeature.P_DIFFUSIVE, diffusiveProba );
-				spot.putFeature( ExTrackProbabilitiesFeature.P_STUCK, stuckProba );
+				final Spot spot = spots[ r ];
+				spot.putFeature( ExTrackProbabilitiesFeature.P_DIFFUSIVE, diffusiveProbas[ offset + r ] );
+				spot.putFeature( ExTrackProbabilitiesFeature.P_STUCK, stuckProbas[ offset + r ] );
 			}
-			logger.setProgress( ( double ) ( ++index ) / nTracks );
 		}
+		logger.setProgress( 1. );
 	}
 }
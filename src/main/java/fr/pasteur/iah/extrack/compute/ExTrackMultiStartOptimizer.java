@@ -0,0 +1,274 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fr.pasteur.iah.extrack.compute;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.scijava.Cancelable;
+
+import Jama.Matrix;
+import fiji.plugin.trackmate.Logger;
+import net.imglib2.algorithm.MultiThreaded;
+
+/**
+ * Estimates the motility parameters from several start points concurrently,
+ * to avoid landing in a local optimum.
+ * <p>
+ * Each start point gets its own {@link ExTrackParameterOptimizer}, driven by
+ * its own thread. The likelihood evaluations of all the optimizations are
+ * submitted to the pool of one shared {@link ExTrackComputeContext}, so the
+ * number of threads doing the computation does not grow with the number of
+ * start points, and the optimizations progress at the same pace.
+ */
+public class ExTrackMultiStartOptimizer implements Runnable, Cancelable, MultiThreaded
+{
+
+	private final List< ExTrackParameters > startPoints;
+
+	private final TrackStore store;
+
+	private final Logger logger;
+
+	private final List< ExTrackParameterOptimizer > optimizers;
+
+	private int numThreads;
+
+	/**
+	 * Compute context shared with other computations. <code>null</code> if
+	 * each run creates its own.
+	 */
+	private ExTrackComputeContext context;
+
+	private ExTrackParameters[] results;
+
+	private double[] logLikelihoods;
+
+	private String cancelReason;
+
+	private boolean isCanceled;
+
+	public ExTrackMultiStartOptimizer(
+			final List< ExTrackParameters > startPoints,
+			final Map< Integer, Matrix > trackMatrices,
+			final Logger logger,
+			final boolean useGradient )
+	{
+		this( startPoints, TrackStore.of( trackMatrices ), logger, useGradient );
+	}
+
+	/**
+	 * Creates a multi-start optimizer.
+	 *
+	 * @param startPoints
+	 *            the start points of the optimizations.
+	 * @param store
+	 *            the tracks, shared by all the optimizations.
+	 * @param logger
+	 *            the logger to report the results to. The optimizations run
+	 *            silently.
+	 * @param useGradient
+	 *            whether the optimizations use the analytic gradient of the
+	 *            likelihood. See
+	 *            {@link ExTrackParameterOptimizer#ExTrackParameterOptimizer(ExTrackParameters, TrackStore, Logger, java.util.function.Consumer, boolean)}.
+	 */
+	public ExTrackMultiStartOptimizer(
+			final List< ExTrackParameters > startPoints,
+			final TrackStore store,
+			final Logger logger,
+			final boolean useGradient )
+	{
+		if ( startPoints.isEmpty() )
+			throw new IllegalArgumentException( "At least one start point is required." );
+		this.startPoints = new ArrayList<>( startPoints );
+		this.store = store;
+		this.logger = logger;
+		this.optimizers = new ArrayList<>( startPoints.size() );
+		for ( final ExTrackParameters startPoint : startPoints )
+			optimizers.add( new ExTrackParameterOptimizer( startPoint, store, Logger.VOID_LOGGER, e -> {}, useGradient ) );
+		setNumThreads();
+	}
+
+	@Override
+	public void run()
+	{
+		cancelReason = null;
+		isCanceled = false;
+		final int nStarts = optimizers.size();
+		results = new ExTrackParameters[ nStarts ];
+		logLikelihoods = new double[ nStarts ];
+
+		logger.log( String.format( "Estimating the parameters from %d start points on %d tracks.\n", nStarts, store.size() ) );
+		// Without a shared context, the threads only live for this run.
+		final ExTrackComputeContext runContext = ( context == null ) ? new ExTrackComputeContext( numThreads ) : context;
+		// The drivers only wait for the pool.
+		final ExecutorService drivers = Executors.newFixedThreadPool( nStarts );
+		try
+		{
+			final List< Future< ? > > futures = new ArrayList<>( nStarts );
+			for ( final ExTrackParameterOptimizer optimizer : optimizers )
+			{
+				optimizer.setComputeContext( runContext );
+				// The pool is already kept busy by the other optimizations.
+				optimizer.setSpeculative( false );
+				futures.add( drivers.submit( optimizer ) );
+			}
+
+			for ( int i = 0; i < nStarts; i++ )
+			{
+				final ExTrackParameterOptimizer optimizer = optimizers.get( i );
+				try
+				{
+					futures.get( i ).get();
+					results[ i ] = optimizer.getParameters();
+					logLikelihoods[ i ] = optimizer.getLogLikelihood();
+					logger.log( String.format( "Start point %d, log-likelihood at the optimum: %11.6g\n%s",
+							i + 1, logLikelihoods[ i ], results[ i ] ) );
+				}
+				catch ( InterruptedException | ExecutionException e )
+				{
+					logLikelihoods[ i ] = Double.NaN;
+					logger.error( "Optimization from start point " + ( i + 1 ) + " failed: " + e.getMessage() + '\n' );
+				}
+			}
+		}
+		finally
+		{
+			drivers.shutdown();
+			if ( context == null )
+				runContext.close();
+		}
+
+		final int best = getBestIndex();
+		if ( best >= 0 )
+			logger.log( String.format( "Best optimum from start point %d:\n%s", best + 1, results[ best ] ), Logger.BLUE_COLOR );
+	}
+
+	/**
+	 * Makes the optimizations run on the pool of the specified context. The
+	 * context is not closed by the optimizer. By default, each run creates
+	 * its own context, with the number of threads set by
+	 * {@link #setNumThreads(int)}, and closes it when done.
+	 *
+	 * @param context
+	 *            the compute context, or <code>null</code> to create one per
+	 *            run.
+	 */
+	public void setComputeContext( final ExTrackComputeContext context )
+	{
+		this.context = context;
+	}
+
+	/**
+	 * Returns the parameters with the highest likelihood among all the
+	 * optimizations of the last run.
+	 *
+	 * @return the best parameters, or <code>null</code> if no optimization
+	 *         completed.
+	 */
+	public ExTrackParameters getBestParameters()
+	{
+		final int best = getBestIndex();
+		return best < 0 ? null : results[ best ];
+	}
+
+	/**
+	 * Returns the optimum of each optimization of the last run, in the order
+	 * of the start points. It is <code>null</code> for the optimizations that
+	 * failed.
+	 *
+	 * @return an unmodifiable list of parameters.
+	 */
+	public List< ExTrackParameters > getParameters()
+	{
+		final List< ExTrackParameters > list = new ArrayList<>( results.length );
+		for ( final ExTrackParameters result : results )
+			list.add( result );
+		return Collections.unmodifiableList( list );
+	}
+
+	/**
+	 * Returns the log-likelihood of the tracks at the optimum of each
+	 * optimization of the last run, in the order of the start points. It is
+	 * NaN for the optimizations that did not complete.
+	 *
+	 * @return a new array.
+	 */
+	public double[] getLogLikelihoods()
+	{
+		return logLikelihoods.clone();
+	}
+
+	private int getBestIndex()
+	{
+		int best = -1;
+		for ( int i = 0; i < logLikelihoods.length; i++ )
+			if ( !Double.isNaN( logLikelihoods[ i ] ) && ( best < 0 || logLikelihoods[ i ] > logLikelihoods[ best ] ) )
+				best = i;
+		return best;
+	}
+
+	@Override
+	public boolean isCanceled()
+	{
+		return isCanceled;
+	}
+
+	@Override
+	public void cancel( final String reason )
+	{
+		this.cancelReason = reason;
+		isCanceled = true;
+		for ( final ExTrackParameterOptimizer optimizer : optimizers )
+			optimizer.cancel( reason );
+	}
+
+	@Override
+	public String getCancelReason()
+	{
+		return cancelReason;
+	}
+
+	@Override
+	public void setNumThreads()
+	{
+		setNumThreads( Runtime.getRuntime().availableProcessors() / 2 );
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+}
@@ -21,7 +21,11 @@
  */
 package fr.pasteur.iah.extrack.compute;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.function.Consumer;
 
 import org.scijava.Cancelable;
@@ -32,31 +36,231 @@ import fiji.plugin.trackmate.Logger;
 public class ExTrackParameterOptimizer implements Runnable, Cancelable
 {
 
+	/**
+	 * Growth of the subset of tracks between two optimization stages.
+	 */
+	private static final int SUBSAMPLING_GROWTH = 4;
+
+	/**
+	 * Smallest number of tracks of a subset.
+	 */
+	private static final int MIN_SUBSET_SIZE = 50;
+
+	/**
+	 * Stages on subsets stop on looser tolerances, since their optimum is only
+	 * an approximation of the final one.
+	 */
+	private static final double SUBSET_TOLERANCE_FACTOR = 1000.;
+
+	/**
+	 * Fixed seed, so that an estimation can be reproduced.
+	 */
+	private static final long SUBSAMPLING_SEED = 1l;
+
+	/**
+	 * Number of line search points evaluated concurrently when an evaluation
+	 * leaves threads idle.
+	 */
+	private static final int SPECULATION = 3;
+
+	/**
+	 * Estimated fraction of busy threads under which an evaluation leaves
+	 * enough of them idle for speculative evaluations.
+	 */
+	private static final double SPECULATION_MAX_EFFICIENCY = 0.5;
+
 	private final Logger logger;
 
 	private final ExTrackParameters startPoint;
 
-	private final Map< Integer, Matrix > trackMatrices;
+	private final TrackStore store;
 
 	/*
-	 * Perform optimization. Optimizer is Powell optimizer updated by Brent.
+	 * Perform optimization. Optimizer is Powell optimizer updated by Brent,
+	 * or a bounded L-BFGS using the analytic gradient of the likelihood. Only
+	 * one of the two is not null.
 	 */
 	private final ConjugateDirectionSearch optimizer;
 
+	private final BoundedLBFGS gradientOptimizer;
+
+	private double logCutoff = Double.POSITIVE_INFINITY;
+
+	private int beamWidth = 0;
+
+	/**
+	 * Fraction of the tracks used by the first stage of the optimization. 1
+	 * when subsampling is off.
+	 */
+	private double initialFraction = 1.;
+
+	/**
+	 * Compute context shared with other computations. <code>null</code> if
+	 * each run creates its own.
+	 */
+	private ExTrackComputeContext context;
+
+	/**
+	 * Whether line search points may be evaluated ahead, see
+	 * {@link #setSpeculative(boolean)}.
+	 */
+	private boolean speculative = true;
+
+	/**
+	 * Log-likelihood of the tracks at the optimum.
+	 */
+	private double logLikelihood = Double.NaN;
+
 	public ExTrackParameterOptimizer(
 			final ExTrackParameters startPoint,
 			final Map< Integer, Matrix > trackMatrices,
 			final Logger logger,
 			final Consumer< double[] > valueWatcher )
+	{
+		this( startPoint, trackMatrices, logger, valueWatcher, false );
+	}
+
+	public ExTrackParameterOptimizer(
+			final ExTrackParameters startPoint,
+			final TrackStore store,
+			final Logger logger,
+			final Consumer< double[] > valueWatcher )
+	{
+		this( startPoint, store, logger, valueWatcher, false );
+	}
+
+	public ExTrackParameterOptimizer(
+			final ExTrackParameters startPoint,
+			final Map< Integer, Matrix > trackMatrices,
+			final Logger logger,
+			final Consumer< double[] > valueWatcher,
+			final boolean useGradient )
+	{
+		this( startPoint, TrackStore.of( trackMatrices ), logger, valueWatcher, useGradient );
+	}
+
+	/**
+	 * Creates an optimizer.
+	 *
+	 * @param startPoint
+	 *            the parameters to start the optimization from.
+	 * @param store
+	 *            the tracks.
+	 * @param logger
+	 *            the logger to report progress to.
+	 * @param valueWatcher
+	 *            notified of the parameter values at each iteration.
+	 * @param useGradient
+	 *            if <code>true</code>, the optimization is a bounded L-BFGS
+	 *            that uses the analytic gradient of the likelihood. It needs
+	 *            fewer passes over the tracks, but each costs more. Otherwise
+	 *            it is a derivative-free conjugate direction search.
+	 */
+	public ExTrackParameterOptimizer(
+			final ExTrackParameters startPoint,
+			final TrackStore store,
+			final Logger logger,
+			final Consumer< double[] > valueWatcher,
+			final boolean useGradient )
 	{
 		this.startPoint = startPoint;
-		this.trackMatrices = trackMatrices;
+		this.store = store;
 		this.logger = logger;
-		this.optimizer = new ConjugateDirectionSearch( logger, valueWatcher );
+		if ( useGradient )
+		{
+			this.optimizer = null;
+			this.gradientOptimizer = new BoundedLBFGS( logger, valueWatcher );
+		}
+		else
+		{
+			this.optimizer = new ConjugateDirectionSearch( logger, valueWatcher );
+			this.gradientOptimizer = null;
+		}
 	}
 
 	@Override
 	public void run()
+	{
+		// Without a shared context, the threads only live for this run.
+		try (final ExTrackComputeContext ownContext = ( context == null ) ? new ExTrackComputeContext() : null)
+		{
+			estimate( ( context == null ) ? ownContext : context );
+		}
+	}
+
+	private void estimate( final ExTrackComputeContext runContext )
+	{
+		logLikelihood = Double.NaN;
+		logger.log( "Likelihood kernels: " + FlatTrackState.getKernelsDescription() + ".\n" );
+		final double[] parameters = startPoint.optimParamstoArray();
+		final double tolfx = 1e-6;
+		final double tolx = 1e-6;
+
+		if ( gradientOptimizer != null && parameters[ 1 ] == parameters[ 2 ] )
+		{
+			/*
+			 * With equal diffusion lengths the two states are exchangeable and
+			 * the gradient cannot tell them apart. Split them so that the
+			 * descent can leave this saddle.
+			 */
+			parameters[ 1 ] *= 0.5;
+			logger.log( String.format( "The two diffusion lengths of the start point are equal: "
+					+ "starting from %.3g for the diffusive state instead, so that the gradient can tell the states apart.\n",
+					parameters[ 1 ] ) );
+		}
+
+		/*
+		 * Coarse stages on growing random subsets of the tracks. The subsets
+		 * are nested, and each stage starts from the optimum of the previous
+		 * one.
+		 */
+		if ( initialFraction < 1. )
+		{
+			final List< Integer > tracks = new ArrayList<>( store.size() );
+			for ( int t = 0; t < store.size(); t++ )
+				tracks.add( Integer.valueOf( t ) );
+			Collections.shuffle( tracks, new Random( SUBSAMPLING_SEED ) );
+			for ( double fraction = initialFraction; fraction < 1.; fraction *= SUBSAMPLING_GROWTH )
+			{
+				final int nTracks = Math.max( MIN_SUBSET_SIZE, ( int ) Math.ceil( fraction * tracks.size() ) );
+				// The last subset stage is not worth it when close to the full set.
+				if ( nTracks * SUBSAMPLING_GROWTH > tracks.size() )
+					break;
+
+				final int[] subset = new int[ nTracks ];
+				for ( int i = 0; i < nTracks; i++ )
+					subset[ i ] = tracks.get( i ).intValue();
+				logger.log( String.format( "\nOptimizing on a random subset of %d tracks out of %d.\n", nTracks, tracks.size() ) );
+				try (final NegativeLikelihoodFunction subsetFun = createFunction( store.subset( subset ), runContext ))
+				{
+					optimize( subsetFun, parameters, SUBSET_TOLERANCE_FACTOR * tolfx, SUBSET_TOLERANCE_FACTOR * tolx, runContext );
+				}
+				if ( isCanceled() )
+					return;
+			}
+			logger.log( String.format( "\nOptimizing on all %d tracks.\n", tracks.size() ) );
+		}
+
+		try (final NegativeLikelihoodFunction fun = createFunction( store, runContext ))
+		{
+			optimize( fun, parameters, tolfx, tolx, runContext );
+			if ( !isCanceled() )
+				// Usually answered by the cache of the function.
+				logLikelihood = -fun.evaluate( parameters );
+
+			logger.log( "\n\n-------------------------------------------------------------------------\n", Logger.BLUE_COLOR );
+			logger.log( String.format( "%40s: %8.3g\n", "Localization error", parameters[ 0 ] ), Logger.BLUE_COLOR );
+			logger.log( String.format( "%40s: %8.3g\n", "Diffusion length for diffusive state", parameters[ 1 ] ), Logger.BLUE_COLOR );
+			logger.log( String.format( "%40s: %8.3g\n", "Diffusion length for bound state", parameters[ 2 ] ), Logger.BLUE_COLOR );
+			logger.log( String.format( "%40s: %8.3g\n", "Fraction in diffusive state", parameters[ 3 ] ), Logger.BLUE_COLOR );
+			logger.log( String.format( "%40s: %8.3g\n", "Probability of unbinding", parameters[ 4 ] ), Logger.BLUE_COLOR );
+			if ( fun.isPruning() )
+				logger.log( String.format( "%40s: %8.3g\n", "Largest probability mass pruned", fun.getDiscardedMass() ), Logger.BLUE_COLOR );
+			logger.log( String.format( "%40s: %d / %d\n", "Cached likelihood evaluations", fun.getCacheHits(), fun.getCacheHits() + fun.getCacheMisses() ), Logger.BLUE_COLOR );
+		}
+	}
+
+	private NegativeLikelihoodFunction createFunction( final TrackStore tracks, final ExTrackComputeContext runContext )
 	{
 		final int nbSubSteps = startPoint.nbSubteps;
 		final int frameLen = startPoint.nFrames;
@@ -64,45 +268,127 @@ public class ExTrackParameterOptimizer implements Runnable, Cancelable
 		// No doPred for optimization.
 		final boolean doPred = false;
 
-		final double[] parameters = startPoint.optimParamstoArray();
-		final double tolfx = 1e-6;
-		final double tolx = 1e-6;
+		final NegativeLikelihoodFunction fun = new NegativeLikelihoodFunction( tracks, nbSubSteps, doFrame, frameLen, doPred, runContext );
+		if ( logCutoff != Double.POSITIVE_INFINITY || beamWidth > 0 )
+			fun.setPruning( logCutoff, beamWidth );
+		return fun;
+	}
 
-		final NegativeLikelihoodFunction fun = new NegativeLikelihoodFunction( trackMatrices, nbSubSteps, doFrame, frameLen, doPred );
-		optimizer.optimize(
-				fun,
-				parameters,
-				tolfx, tolx );
+	private void optimize( final NegativeLikelihoodFunction fun, final double[] parameters, final double tolfx, final double tolx, final ExTrackComputeContext runContext )
+	{
+		if ( gradientOptimizer != null )
+		{
+			gradientOptimizer.optimize( fun, parameters, tolfx, tolx );
+		}
+		else
+		{
+			// Speculate only when an evaluation leaves threads idle.
+			final boolean idleThreads = fun.getParallelEfficiency() < SPECULATION_MAX_EFFICIENCY;
+			optimizer.speculation = ( speculative && idleThreads ) ? SPECULATION : 1;
+			optimizer.speculationExecutor = runContext.getPool();
+			optimizer.optimize( fun, parameters, tolfx, tolx );
+		}
+	}
+
+	/**
+	 * Makes the likelihood evaluations run on the pool of the specified
+	 * context, for instance to share the same threads with other
+	 * computations. The context is not closed by the optimizer. By default,
+	 * each run creates its own context and closes it when done.
+	 *
+	 * @param context
+	 *            the compute context, or <code>null</code> to create one per
+	 *            run.
+	 */
+	public void setComputeContext( final ExTrackComputeContext context )
+	{
+		this.context = context;
+	}
+
+	/**
+	 * Sets whether the conjugate direction search may evaluate the points of
+	 * its line searches ahead, concurrently, when an evaluation has too few
+	 * tasks to use all the threads. On by default. It is best turned off when
+	 * the threads are already kept busy by other optimizations.
+	 *
+	 * @param speculative
+	 *            whether to evaluate line search points ahead.
+	 */
+	public void setSpeculative( final boolean speculative )
+	{
+		this.speculative = speculative;
+	}
 
-		logger.log( "\n\n-------------------------------------------------------------------------\n", Logger.BLUE_COLOR );
-		logger.log( String.format( "%40s: %8.3g\n", "Localization error", parameters[ 0 ] ), Logger.BLUE_COLOR );
-		logger.log( String.format( "%40s: %8.3g\n", "Diffusion length for diffusive state", parameters[ 1 ] ), Logger.BLUE_COLOR );
-		logger.log( String.format( "%40s: %8.3g\n", "Diffusion length for bound state", parameters[ 2 ] ), Logger.BLUE_COLOR );
-		logger.log( String.format( "%40s: %8.3g\n", "Fraction in diffusive state", parameters[ 3 ] ), Logger.BLUE_COLOR );
-		logger.log( String.format( "%40s: %8.3g\n", "Probability of unbinding", parameters[ 4 ] ), Logger.BLUE_COLOR );
+	/**
+	 * Makes the optimization start on a random subset of the tracks. The
+	 * optimum found on the subset is used as the start point of an
+	 * optimization on a subset {@value #SUBSAMPLING_GROWTH} times larger, and
+	 * so on until all the tracks are used. Most iterations then run far from
+	 * the optimum on a fraction of the data, and only the last ones pay for
+	 * the whole dataset. Subsampling is off by default.
+	 *
+	 * @param initialFraction
+	 *            the fraction of the tracks used by the first stage, in ]0,
+	 *            1]. Use 1 to optimize on all the tracks from the start.
+	 */
+	public void setSubsampling( final double initialFraction )
+	{
+		if ( !( initialFraction > 0. && initialFraction <= 1. ) )
+			throw new IllegalArgumentException( "The initial fraction of tracks must be in ]0, 1], was " + initialFraction );
+		this.initialFraction = initialFraction;
+	}
+
+	/**
+	 * Makes the optimization evaluate the likelihood with pruning. See
+	 * {@link NegativeLikelihoodFunction#setPruning(double, int)}.
+	 *
+	 * @param logCutoff
+	 *            the log-probability cutoff, or
+	 *            {@link Double#POSITIVE_INFINITY} for no cutoff.
+	 * @param beamWidth
+	 *            the beam width, or 0 for no beam.
+	 */
+	public void setPruning( final double logCutoff, final int beamWidth )
+	{
+		this.logCutoff = logCutoff;
+		this.beamWidth = beamWidth;
 	}
 
 	@Override
 	public boolean isCanceled()
 	{
-		return optimizer.isCanceled();
+		return ( gradientOptimizer != null ) ? gradientOptimizer.isCanceled() : optimizer.isCanceled();
 	}
 
 	@Override
 	public void cancel( final String reason )
 	{
-		optimizer.cancel( reason );
+		if ( gradientOptimizer != null )
+			gradientOptimizer.cancel( reason );
+		else
+			optimizer.cancel( reason );
 	}
 
 	@Override
 	public String getCancelReason()
 	{
-		return optimizer.getCancelReason();
+		return ( gradientOptimizer != null ) ? gradientOptimizer.getCancelReason() : optimizer.getCancelReason();
+	}
+
+	/**
+	 * Returns the log-likelihood of the tracks at the optimum found by the
+	 * last run, or NaN if the optimization did not complete.
+	 *
+	 * @return the log-likelihood.
+	 */
+	public double getLogLikelihood()
+	{
+		return logLikelihood;
 	}
 
 	public ExTrackParameters getParameters()
 	{
-		final double[] array = optimizer.getCurrentValue();
+		final double[] array = ( gradientOptimizer != null ) ? gradientOptimizer.getCurrentValue() : optimizer.getCurrentValue();
 		return ExTrackParameters.create()
 				.localizationError( array[ 0 ] )
 				.diffusionLength0( array[ 1 ] )
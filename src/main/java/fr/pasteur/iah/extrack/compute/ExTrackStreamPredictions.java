@@ -0,0 +1,364 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fr.pasteur.iah.extrack.compute;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.CompletionException;
+
+import Jama.Matrix;
+import fiji.plugin.trackmate.Logger;
+import fr.pasteur.iah.extrack.numpy.NumPyTrackReader;
+import fr.pasteur.iah.extrack.numpy.NumPyWriter;
+
+/**
+ * Computes the state probabilities of the localizations of a NumPy track
+ * file, and writes them to a NumPy or CSV file, without building a TrackMate
+ * model.
+ * <p>
+ * The tracks are read, predicted and written a chunk at a time, so the memory
+ * used does not depend on the size of the file. While the tracks of one chunk
+ * are predicted on the pool of a compute context, the next chunk is read and
+ * the previous one is written.
+ * <p>
+ * The output has one row per localization, in the order of the input file,
+ * with the columns <code>x, y, frame, trackID, pStuck, pDiffusive</code>. A
+ * NumPy output can be imported back in TrackMate with its probabilities.
+ */
+public class ExTrackStreamPredictions
+{
+
+	/**
+	 * Default number of localizations per chunk.
+	 */
+	private static final int DEFAULT_CHUNK_SIZE = 1 << 16;
+
+	private static final String[] COLUMNS = new String[] { "x", "y", "frame", "trackID", "pStuck", "pDiffusive" };
+
+	private final ExTrackParameters params;
+
+	private final String inputPath;
+
+	private final String outputPath;
+
+	private final Logger logger;
+
+	/**
+	 * Compute context shared with other computations. <code>null</code> if
+	 * each run creates its own.
+	 */
+	private ExTrackComputeContext context;
+
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+	/**
+	 * Creates a prediction pipeline.
+	 *
+	 * @param params
+	 *            the motility parameters.
+	 * @param inputPath
+	 *            the path to the NumPy file of the tracks, with the X, Y,
+	 *            frame and track ID columns.
+	 * @param outputPath
+	 *            the path to the file to write. If it ends in
+	 *            '<code>.csv</code>', a CSV file with a header line is
+	 *            written. Otherwise a NumPy file is written.
+	 * @param logger
+	 *            the logger to report progress to.
+	 */
+	public ExTrackStreamPredictions(
+			final ExTrackParameters params,
+			final String inputPath,
+			final String outputPath,
+			final Logger logger )
+	{
+		this.params = params;
+		this.inputPath = inputPath;
+		this.outputPath = outputPath;
+		this.logger = logger;
+	}
+
+	/**
+	 * Makes the predictions run on the pool of the specified context. The
+	 * context is not closed by this instance. By default, each run creates
+	 * its own context and closes it when done.
+	 *
+	 * @param context
+	 *            the compute context, or <code>null</code> to create one per
+	 *            run.
+	 */
+	public void setComputeContext( final ExTrackComputeContext context )
+	{
+		this.context = context;
+	}
+
+	/**
+	 * Sets the number of localizations read and predicted at once. Two chunks
+	 * are in memory at a time.
+	 *
+	 * @param chunkSize
+	 *            the number of localizations per chunk.
+	 */
+	public void setChunkSize( final int chunkSize )
+	{
+		this.chunkSize = Math.max( 1, chunkSize );
+	}
+
+	/**
+	 * Reads the tracks, computes the state probabilities and writes them.
+	 *
+	 * @throws IOException
+	 *             if the input file cannot be read, if the output file cannot
+	 *             be written, or if the predictions of a track failed. The
+	 *             output file is then deleted.
+	 */
+	public void process() throws IOException
+	{
+		// Without a shared context, the threads only live for this run.
+		try (final ExTrackComputeContext ownContext = ( context == null ) ? new ExTrackComputeContext() : null)
+		{
+			process( ( context == null ) ? ownContext : context );
+		}
+	}
+
+	private void process( final ExTrackComputeContext runContext ) throws IOException
+	{
+		final FlatTrackState trackState = new FlatTrackState(
+				params.localizationError,
+				params.diffusionLength0,
+				params.diffusionLength1,
+				params.F0,
+				params.probabilityOfUnbinding,
+				params.nbSubteps,
+				true,
+				params.nFrames,
+				true );
+		// Grows to the size of the largest track as we go.
+		final ThreadLocal< TrackStateWorkspace > workspaces = ThreadLocal.withInitial( () -> new TrackStateWorkspace( 2, 1, 1 ) );
+
+		final NumPyTrackReader reader = new NumPyTrackReader( inputPath );
+		boolean completed = false;
+		try
+		{
+			try (final PredictionWriter writer = outputPath.toLowerCase().endsWith( ".csv" )
+					? new CsvPredictionWriter( outputPath )
+					: new NumPyPredictionWriter( outputPath, reader.getNumRows() ))
+			{
+				final int nRows = reader.getNumRows();
+				int rowsWritten = 0;
+				final NumPyTrackReader.Chunk first = reader.read( chunkSize );
+				Batch current = ( first == null ) ? null : submit( first, trackState, workspaces, runContext );
+				while ( current != null )
+				{
+					final NumPyTrackReader.Chunk nextChunk = reader.read( chunkSize );
+					current.await();
+					final Batch next = ( nextChunk == null ) ? null : submit( nextChunk, trackState, workspaces, runContext );
+					rowsWritten += current.write( writer );
+					logger.setProgress( ( double ) rowsWritten / nRows );
+					current = next;
+				}
+			}
+			completed = true;
+		}
+		finally
+		{
+			// A partial output could be mistaken for a complete one.
+			if ( !completed )
+				new File( outputPath ).delete();
+		}
+	}
+
+	/**
+	 * Submits the predictions of the tracks of a chunk, the longest first,
+	 * in tasks of similar cost.
+	 */
+	private Batch submit(
+			final NumPyTrackReader.Chunk chunk,
+			final FlatTrackState trackState,
+			final ThreadLocal< TrackStateWorkspace > workspaces,
+			final ExTrackComputeContext runContext )
+	{
+		final TrackStore store = chunk.getTracks();
+		final int nTracks = store.size();
+		final Integer[] order = new Integer[ nTracks ];
+		for ( int t = 0; t < nTracks; t++ )
+			order[ t ] = Integer.valueOf( t );
+		Arrays.sort( order, Comparator.comparingInt( ( final Integer t ) -> store.nbLocs( t.intValue() ) ).reversed() );
+		final long[] costs = new long[ nTracks ];
+		for ( int i = 0; i < nTracks; i++ )
+			costs[ i ] = FlatTrackState.cost( store.nbLocs( order[ i ].intValue() ), params.nbSubteps, true, params.nFrames );
+		final int[] starts = NegativeLikelihoodFunction.chunkStarts( costs, runContext.getNumThreads() );
+
+		final Batch batch = new Batch( chunk, runContext, starts.length - 1 );
+		for ( int c = 0; c < starts.length - 1; c++ )
+		{
+			final int from = starts[ c ];
+			final int to = starts[ c + 1 ];
+			batch.tasks.submit( () -> {
+				final TrackStateWorkspace workspace = workspaces.get();
+				for ( int i = from; i < to; i++ )
+				{
+					final int t = order[ i ].intValue();
+					final Matrix predictions = trackState.predict( store, t, workspace );
+					final int offset = store.offset( t );
+					for ( int r = 0; r < store.nbLocs( t ); r++ )
+					{
+						batch.stuckProbas[ offset + r ] = predictions.get( r, 0 );
+						batch.diffusiveProbas[ offset + r ] = predictions.get( r, 1 );
+					}
+				}
+			} );
+		}
+		return batch;
+	}
+
+	/**
+	 * The tracks of a chunk and their predictions, buffered in arrays aligned
+	 * with the localizations.
+	 */
+	private static final class Batch
+	{
+
+		private final NumPyTrackReader.Chunk chunk;
+
+		private final double[] stuckProbas;
+
+		private final double[] diffusiveProbas;
+
+		private final TaskGroup tasks;
+
+		private Batch( final NumPyTrackReader.Chunk chunk, final ExTrackComputeContext runContext, final int nTasks )
+		{
+			this.chunk = chunk;
+			final int nLocs = chunk.getTracks().nLocalizations();
+			this.stuckProbas = new double[ nLocs ];
+			this.diffusiveProbas = new double[ nLocs ];
+			this.tasks = new TaskGroup( runContext.getPool(), nTasks );
+		}
+
+		/**
+		 * Waits for the predictions of this batch. A failed task would leave
+		 * some of them at 0, so it aborts the stream instead.
+		 */
+		private void await() throws IOException
+		{
+			try
+			{
+				tasks.join();
+			}
+			catch ( final CompletionException e )
+			{
+				throw new IOException( e.getMessage(), e.getCause() );
+			}
+		}
+
+		/**
+		 * Writes the rows of this batch and returns their number.
+		 */
+		private int write( final PredictionWriter writer ) throws IOException
+		{
+			final TrackStore store = chunk.getTracks();
+			for ( int t = 0; t < store.size(); t++ )
+			{
+				final int offset = store.offset( t );
+				for ( int r = 0; r < store.nbLocs( t ); r++ )
+					writer.write(
+							store.get( t, r, 0 ),
+							store.get( t, r, 1 ),
+							chunk.getFrame( t, r ),
+							store.getTrackID( t ),
+							stuckProbas[ offset + r ],
+							diffusiveProbas[ offset + r ] );
+			}
+			return store.nLocalizations();
+		}
+	}
+
+	private interface PredictionWriter extends Closeable
+	{
+		void write( double x, double y, double frame, int trackID, double pStuck, double pDiffusive ) throws IOException;
+	}
+
+	private static final class NumPyPredictionWriter implements PredictionWriter
+	{
+
+		private final NumPyWriter writer;
+
+		private NumPyPredictionWriter( final String path, final int nRows ) throws IOException
+		{
+			this.writer = new NumPyWriter( path, nRows, COLUMNS.length );
+		}
+
+		@Override
+		public void write( final double x, final double y, final double frame, final int trackID, final double pStuck, final double pDiffusive ) throws IOException
+		{
+			writer.writeRow( x, y, frame, trackID, pStuck, pDiffusive );
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			writer.close();
+		}
+	}
+
+	private static final class CsvPredictionWriter implements PredictionWriter
+	{
+
+		private final BufferedWriter writer;
+
+		private CsvPredictionWriter( final String path ) throws IOException
+		{
+			this.writer = new BufferedWriter( new FileWriter( path ) );
+			writer.write( String.join( ",", COLUMNS ) );
+			writer.newLine();
+		}
+
+		@Override
+		public void write( final double x, final double y, final double frame, final int trackID, final double pStuck, final double pDiffusive ) throws IOException
+		{
+			writer.write( Double.toString( x ) );
+			writer.write( ',' );
+			writer.write( Double.toString( y ) );
+			writer.write( ',' );
+			writer.write( Long.toString( ( long ) frame ) );
+			writer.write( ',' );
+			writer.write( Integer.toString( trackID ) );
+			writer.write( ',' );
+			writer.write( Double.toString( pStuck ) );
+			writer.write( ',' );
+			writer.write( Double.toString( pDiffusive ) );
+			writer.newLine();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			writer.close();
+		}
+	}
+}
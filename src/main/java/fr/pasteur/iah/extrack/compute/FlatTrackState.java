@@ -0,0 +1,702 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fr.pasteur.iah.extrack.compute;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import Jama.Matrix;
+
+/**
+ * Primitive-array implementation of the forward recursion of
+ * {@link TrackState}.
+ * <p>
+ * The state sequences are stored as flat <code>double[]</code> buffers, one
+ * per quantity (and one per dimension for the mean positions), and every step
+ * of the recursion writes in place. Because the state sequence matrix
+ * <code>currBs</code> of {@link TrackState} always holds all the binary
+ * patterns of its width, in order, the state of sub-step <code>c</code> in
+ * the sequence <code>r</code> is simply the bit <code>c</code> of
+ * <code>r</code>. This means that the diffusion length and log-transition
+ * values only depend on the lowest <code>nbSubSteps + 1</code> bits of the
+ * sequence index, and are read from {@link StateTables} shared by all the
+ * tracks.
+ * <p>
+ * The per-state arithmetic is delegated to {@link StateKernels}. With the
+ * scalar kernels, it is performed in the same order as in {@link TrackState},
+ * so the two implementations return identical likelihoods.
+ * <p>
+ * Tracks with the same number of localizations go through the same sequence
+ * of state counts, so they can be evaluated together in lock-step with
+ * {@link #evalLogLikelihoods(TrackStore, int[], TrackStateWorkspace, double[])}.
+ * The buffers are then laid out as structure-of-arrays over (track &times;
+ * state sequence): the sequence <code>r</code> of the track <code>t</code> is
+ * stored at index <code>t * n + r</code>, where <code>n</code> is the current
+ * number of sequences per track. Every step of the recursion is then a single
+ * unit-stride loop over all the sequences of all the tracks of the batch. A
+ * single track is simply a batch of one.
+ * <p>
+ * When called from a thread of a {@link java.util.concurrent.ForkJoinPool},
+ * steps that hold more than {@value #PARALLEL_THRESHOLD} state sequences are
+ * split in ranges processed by fork-join tasks, so that idle threads of the
+ * pool can help with the few very long tracks of a dataset. The results do
+ * not depend on how the work is split.
+ */
+public class FlatTrackState
+{
+
+	private static final StateKernels KERNELS = StateKernels.select();
+
+	/**
+	 * Number of state sequences above which a step is split across fork-join
+	 * tasks.
+	 */
+	static final int PARALLEL_THRESHOLD = 1 << 12;
+
+	/**
+	 * Describes the implementation of the per-state arithmetic used on this
+	 * JVM, and why the SIMD one is not used when it is not.
+	 *
+	 * @return a short description of the kernels.
+	 */
+	public static String getKernelsDescription()
+	{
+		return KERNELS.toString();
+	}
+
+	/**
+	 * Smallest number of state sequences processed by one fork-join task.
+	 * Must be a multiple of 64, see {@link StateKernels}.
+	 */
+	private static final int MIN_CHUNK_SIZE = 1 << 10;
+
+	private final double localizationError;
+
+	private final StateTables tables;
+
+	private final int nbSubSteps;
+
+	private final boolean doFrame;
+
+	private final int frameLen;
+
+	private final boolean doPred;
+
+	public FlatTrackState(
+			final double localizationError,
+			final double diffusionLength0,
+			final double diffusionLength1,
+			final double F0,
+			final double probabilityOfUnbindingContinuous,
+			final int nbSubSteps,
+			final boolean doFrame,
+			final int frameLen,
+			final boolean doPred )
+	{
+		this(
+				localizationError,
+				StateTables.get( diffusionLength0, diffusionLength1, F0, probabilityOfUnbindingContinuous, nbSubSteps ),
+				doFrame,
+				frameLen,
+				doPred );
+	}
+
+	public FlatTrackState(
+			final double localizationError,
+			final StateTables tables,
+			final boolean doFrame,
+			final int frameLen,
+			final boolean doPred )
+	{
+		this.localizationError = localizationError;
+		this.tables = tables;
+		this.nbSubSteps = tables.nbSubSteps;
+		this.doFrame = doFrame;
+		this.frameLen = frameLen;
+		this.doPred = doPred;
+	}
+
+	/**
+	 * Returns:
+	 * <ol start="0">
+	 * <li>the matrix of probabilities P
+	 * <li>the matrix of state prediction pred
+	 * </ol>
+	 * as {@link TrackState#eval(Matrix)} does. P is identical with the scalar
+	 * kernels. The predictions are computed from probabilities scaled by their
+	 * maximum, so they can differ by rounding errors, and stay defined when
+	 * all the probabilities underflow to 0.
+	 *
+	 * @param track
+	 *            the track to evaluate.
+	 * @return a new array of matrices.
+	 */
+	public Matrix[] eval( final Matrix track )
+	{
+		return eval( track, newWorkspace( track ) );
+	}
+
+	/**
+	 * Same as {@link #eval(Matrix)}, but uses the specified workspace for all
+	 * intermediate computations instead of allocating new buffers.
+	 *
+	 * @param track
+	 *            the track to evaluate.
+	 * @param workspace
+	 *            the workspace to use. Must not be used concurrently by
+	 *            another thread.
+	 * @return a new array of matrices.
+	 */
+	public Matrix[] eval( final Matrix track, final TrackStateWorkspace workspace )
+	{
+		final int nbCols = forward( TrackStore.of( track ), new int[] { 0 }, workspace, doPred );
+		final int n = 1 << nbCols;
+		final double[] LP = workspace.LP;
+		final Matrix P = new Matrix( n, 1 );
+		for ( int r = 0; r < n; r++ )
+			P.set( r, 0, Math.exp( LP[ r ] ) );
+
+		if ( !doPred )
+			return new Matrix[] { P, null };
+
+		return new Matrix[] { P, predictions( track.getRowDimension(), nbCols, workspace ) };
+	}
+
+	/**
+	 * Returns the log-likelihood of the specified track, that is the log of
+	 * the sum of the probabilities P returned by {@link #eval(Matrix)}.
+	 * <p>
+	 * The sum is computed in the log domain, scaled by the largest
+	 * log-probability, so the result does not underflow to
+	 * <code>-Infinity</code> for long tracks.
+	 *
+	 * @param track
+	 *            the track to evaluate.
+	 * @param workspace
+	 *            the workspace to use. Must not be used concurrently by
+	 *            another thread.
+	 * @return the log-likelihood of the track.
+	 */
+	public double evalLogLikelihood( final Matrix track, final TrackStateWorkspace workspace )
+	{
+		return evalLogLikelihood( TrackStore.of( track ), 0, workspace );
+	}
+
+	/**
+	 * Returns the log-likelihood of the specified track of a store. See
+	 * {@link #evalLogLikelihood(Matrix, TrackStateWorkspace)}.
+	 *
+	 * @param store
+	 *            the store containing the track.
+	 * @param track
+	 *            the index of the track in the store.
+	 * @param workspace
+	 *            the workspace to use. Must not be used concurrently by
+	 *            another thread.
+	 * @return the log-likelihood of the track.
+	 */
+	public double evalLogLikelihood( final TrackStore store, final int track, final TrackStateWorkspace workspace )
+	{
+		final int nbCols = forward( store, new int[] { track }, workspace, false );
+		return logSumExp( workspace.LP, 0, 1 << nbCols );
+	}
+
+	/**
+	 * Computes the log-likelihoods of a batch of tracks that all have the
+	 * same number of localizations, evaluating them in lock-step. The results
+	 * are identical to calling {@link #evalLogLikelihood(Matrix,
+	 * TrackStateWorkspace)} on each track.
+	 *
+	 * @param tracks
+	 *            the tracks to evaluate. They must all have the same number of
+	 *            rows and columns.
+	 * @param nTracks
+	 *            the number of tracks to evaluate in the array, starting from
+	 *            the first one.
+	 * @param workspace
+	 *            the workspace to use. Must not be used concurrently by
+	 *            another thread.
+	 * @param out
+	 *            an array in which to write the log-likelihoods of the tracks.
+	 *            Must be at least <code>nTracks</code> long.
+	 */
+	public void evalLogLikelihoods( final Matrix[] tracks, final int nTracks, final TrackStateWorkspace workspace, final double[] out )
+	{
+		final int[] indices = new int[ nTracks ];
+		for ( int t = 0; t < nTracks; t++ )
+			indices[ t ] = t;
+		evalLogLikelihoods( TrackStore.of( Arrays.copyOf( tracks, nTracks ) ), indices, workspace, out );
+	}
+
+	/**
+	 * Computes the log-likelihoods of a batch of tracks of a store that all
+	 * have the same number of localizations, evaluating them in lock-step.
+	 * See {@link #evalLogLikelihoods(Matrix[], int, TrackStateWorkspace, double[])}.
+	 *
+	 * @param store
+	 *            the store containing the tracks.
+	 * @param tracks
+	 *            the indices of the tracks to evaluate in the store.
+	 * @param workspace
+	 *            the workspace to use. Must not be used concurrently by
+	 *            another thread.
+	 * @param out
+	 *            an array in which to write the log-likelihoods of the tracks.
+	 *            Must be at least as long as <code>tracks</code>.
+	 */
+	public void evalLogLikelihoods( final TrackStore store, final int[] tracks, final TrackStateWorkspace workspace, final double[] out )
+	{
+		final int nbCols = forward( store, tracks, workspace, false );
+		final int n = 1 << nbCols;
+		for ( int t = 0; t < tracks.length; t++ )
+			out[ t ] = logSumExp( workspace.LP, t * n, n );
+	}
+
+	/**
+	 * Returns the matrix of state predictions for the specified track, with
+	 * one row per localization and 2 columns: the probability to be in the
+	 * first state (stuck), and in the second state (diffusive). The
+	 * predictions are computed whatever the value of <code>doPred</code>
+	 * given at construction, and the probability matrix P is not built.
+	 *
+	 * @param track
+	 *            the track to evaluate.
+	 * @param workspace
+	 *            the workspace to use. Must not be used concurrently by
+	 *            another thread.
+	 * @return a new matrix.
+	 */
+	public Matrix predict( final Matrix track, final TrackStateWorkspace workspace )
+	{
+		return predict( TrackStore.of( track ), 0, workspace );
+	}
+
+	/**
+	 * Returns the matrix of state predictions for the specified track of a
+	 * store. See {@link #predict(Matrix, TrackStateWorkspace)}.
+	 *
+	 * @param store
+	 *            the store containing the track.
+	 * @param track
+	 *            the index of the track in the store.
+	 * @param workspace
+	 *            the workspace to use. Must not be used concurrently by
+	 *            another thread.
+	 * @return a new matrix.
+	 */
+	public Matrix predict( final TrackStore store, final int track, final TrackStateWorkspace workspace )
+	{
+		final int nbCols = forward( store, new int[] { track }, workspace, true );
+		return predictions( store.nbLocs( track ), nbCols, workspace );
+	}
+
+	/**
+	 * Returns a new workspace sized for the specified track.
+	 *
+	 * @param track
+	 *            the track.
+	 * @return a new workspace.
+	 */
+	public TrackStateWorkspace newWorkspace( final Matrix track )
+	{
+		final int nbLocs = track.getRowDimension();
+		return new TrackStateWorkspace(
+				track.getColumnDimension(),
+				maxNbStates( nbLocs ),
+				nbSubLocs( nbLocs ) );
+	}
+
+	/**
+	 * Runs the forward recursion on the specified batch of tracks. When this
+	 * method returns, the workspace LP buffer contains the final
+	 * log-probabilities of the state sequences and, if
+	 * <code>computePred</code> is <code>true</code>, the pred buffer contains
+	 * the predictions of all the sub-localizations except the last ones.
+	 * Predictions can only be computed for a batch of one track.
+	 *
+	 * @return the number of sub-steps in the final state sequences. There are
+	 *         <code>2^nbCols</code> sequences per track.
+	 */
+	private int forward( final TrackStore store, final int[] tracks, final TrackStateWorkspace workspace, final boolean computePred )
+	{
+		final int nTracks = tracks.length;
+		final int nbLocs = store.nbLocs( tracks[ 0 ] );
+		final int nDims = store.nDims();
+		for ( int t = 1; t < nTracks; t++ )
+			if ( store.nbLocs( tracks[ t ] ) != nbLocs )
+				throw new IllegalArgumentException( "All the tracks of a batch must have the same size." );
+		if ( computePred && nTracks != 1 )
+			throw new IllegalArgumentException( "Predictions can only be computed one track at a time." );
+
+		final int nbSubLocs = nbSubLocs( nbLocs );
+		workspace.ensureCapacity( nDims, nTracks * maxNbStates( nbLocs ), nbSubLocs, nTracks );
+		final double[][] Km = workspace.Km;
+		final double[] Ks = workspace.Ks;
+		final double[] LP = workspace.LP;
+		final double[][] obs = workspace.obs;
+		workspace.discardedMass = 0.;
+
+		/*
+		 * Initialize.
+		 */
+
+		int nbCols = nbSubSteps + 1;
+		int n = 1 << nbCols;
+		final int stateMask = tables.stateMask;
+		for ( int t = 0; t < nTracks; t++ )
+		{
+			for ( int c = 0; c < nDims; c++ )
+				Arrays.fill( Km[ c ], t * n, ( t + 1 ) * n, store.get( tracks[ t ], nbLocs - 1, c ) );
+			for ( int r = 0; r < n; r++ )
+			{
+				final double ds = tables.diffusionLengths[ r & stateMask ];
+				Ks[ t * n + r ] = Math.sqrt( localizationError * localizationError + ds * ds );
+				LP[ t * n + r ] = tables.logTransitions[ r & stateMask ];
+			}
+		}
+
+		/*
+		 * Iterate.
+		 */
+
+		final int fanOut = 1 << nbSubSteps;
+		final double[] pred = workspace.pred;
+		if ( computePred )
+			Arrays.fill( pred, 0, 2 * nbSubLocs, -1. );
+
+		int currentStep = 2;
+		int removeStep = 0;
+		while ( currentStep <= nbLocs - 1 )
+		{
+			// Repeating the whole buffer keeps the per-track layout.
+			for ( int c = 0; c < nDims; c++ )
+				repeatLines( Km[ c ], nTracks * n, fanOut );
+			repeatLines( Ks, nTracks * n, fanOut );
+			repeatLines( LP, nTracks * n, fanOut );
+			n *= fanOut;
+			nbCols += nbSubSteps;
+
+			final int detectionRow = nbLocs - currentStep;
+			for ( int t = 0; t < nTracks; t++ )
+				for ( int c = 0; c < nDims; c++ )
+					obs[ c ][ t ] = store.get( tracks[ t ], detectionRow, c );
+
+			final int nStates = n;
+			forEachRange( nTracks * n, true, ( from, to ) -> KERNELS.logIntegralDiff( localizationError, tables, obs, nStates, Km, Ks, LP, from, to ) );
+
+			if ( doFrame && currentStep < nbLocs - 1 )
+			{
+				while ( n >= ( 1 << frameLen ) )
+				{
+					if ( computePred )
+						predictLastState( obs, Km, Ks, LP, workspace.LPPred, n, nbCols - 1, pred, nbSubLocs - ( removeStep + 1 ) );
+
+					// Ranges of a batch overlap once compacted.
+					final int currNbBs = n;
+					forEachRange( nTracks * n / 2, nTracks == 1, ( from, to ) -> KERNELS.fuseTracks( Km, Ks, LP, currNbBs, from, to ) );
+					n /= 2;
+					nbCols -= 1;
+					removeStep += 1;
+				}
+			}
+
+			currentStep++;
+		}
+
+		/*
+		 * Add the log of the probability of the first detection and of the
+		 * probability to be in the first state.
+		 */
+
+		for ( int t = 0; t < nTracks; t++ )
+			for ( int c = 0; c < nDims; c++ )
+				obs[ c ][ t ] = store.get( tracks[ t ], 0, c );
+		final int nStates = n;
+		forEachRange( nTracks * n, true, ( from, to ) -> KERNELS.logIntegratedTerms( localizationError, tables, obs, nStates, Km, Ks, LP, LP, from, to ) );
+
+		return nbCols;
+	}
+
+	/**
+	 * Completes the predictions with the final log-probabilities and returns
+	 * them, one row per localization. A track with a single localization has
+	 * fewer sub-localizations than states in its sequences: the states past
+	 * the first sub-localization are not predicted.
+	 */
+	private Matrix predictions( final int nbLocs, final int nbCols, final TrackStateWorkspace workspace )
+	{
+		final int n = 1 << nbCols;
+		final double[] LP = workspace.LP;
+		final double[] pred = workspace.pred;
+		double maxLP = Double.NEGATIVE_INFINITY;
+		for ( int r = 0; r < n; r++ )
+			maxLP = Math.max( maxLP, LP[ r ] );
+		final int nbRows = Math.min( nbCols, nbSubLocs( nbLocs ) );
+		for ( int rowPred = 0; rowPred < nbRows; rowPred++ )
+		{
+			double conditionalSumP0 = 0.;
+			double conditionalSumP1 = 0.;
+			for ( int r = 0; r < n; r++ )
+			{
+				final double p = Math.exp( LP[ r ] - maxLP );
+				if ( ( ( r >> rowPred ) & 1 ) == 0 )
+					conditionalSumP0 += p;
+				else
+					conditionalSumP1 += p;
+			}
+			final double sumP = conditionalSumP0 + conditionalSumP1;
+			pred[ 2 * rowPred ] = conditionalSumP0 / sumP;
+			pred[ 2 * rowPred + 1 ] = conditionalSumP1 / sumP;
+		}
+
+		/*
+		 * Cherry-pick pred. Make a smaller matrix, jumping over nbSubSteps so
+		 * that outPred has the same size that of locs.
+		 */
+
+		final Matrix outPred = new Matrix( nbLocs, 2 );
+		for ( int rowOutPred = 0; rowOutPred < nbLocs; rowOutPred++ )
+		{
+			final int rowPred = rowOutPred * nbSubSteps;
+			outPred.set( rowOutPred, 0, pred[ 2 * rowPred ] );
+			outPred.set( rowOutPred, 1, pred[ 2 * rowPred + 1 ] );
+		}
+		return outPred;
+	}
+
+	/**
+	 * Returns the largest number of state sequences that the recursion will
+	 * hold at once for a track with the specified number of localizations.
+	 *
+	 * @param nbLocs
+	 *            the number of localizations in the track.
+	 * @return the number of state sequences.
+	 */
+	public int maxNbStates( final int nbLocs )
+	{
+		return maxNbStates( nbLocs, nbSubSteps, doFrame, frameLen );
+	}
+
+	/**
+	 * Returns the largest number of state sequences that the recursion will
+	 * hold at once for a track with the specified number of localizations
+	 * and the specified settings.
+	 *
+	 * @param nbLocs
+	 *            the number of localizations in the track.
+	 * @param nbSubSteps
+	 *            the number of sub-steps.
+	 * @param doFrame
+	 *            whether state sequences are fused when they get longer than
+	 *            <code>frameLen</code>.
+	 * @param frameLen
+	 *            the maximal length of the state sequences.
+	 * @return the number of state sequences.
+	 */
+	public static int maxNbStates( final int nbLocs, final int nbSubSteps, final boolean doFrame, final int frameLen )
+	{
+		int n = 1 << ( nbSubSteps + 1 );
+		int max = n;
+		for ( int currentStep = 2; currentStep <= nbLocs - 1; currentStep++ )
+		{
+			n <<= nbSubSteps;
+			max = Math.max( max, n );
+			if ( doFrame && currentStep < nbLocs - 1 )
+				while ( n >= ( 1 << frameLen ) )
+					n /= 2;
+		}
+		return max;
+	}
+
+	/**
+	 * Returns an estimate of the cost of the evaluation of a track with the
+	 * specified number of localizations and the specified settings, as the
+	 * total number of state sequences processed over the recursion. It is
+	 * meant to compare tracks, not to predict a duration.
+	 *
+	 * @param nbLocs
+	 *            the number of localizations in the track.
+	 * @param nbSubSteps
+	 *            the number of sub-steps.
+	 * @param doFrame
+	 *            whether state sequences are fused when they get longer than
+	 *            <code>frameLen</code>.
+	 * @param frameLen
+	 *            the maximal length of the state sequences.
+	 * @return the cost estimate.
+	 */
+	public static long cost( final int nbLocs, final int nbSubSteps, final boolean doFrame, final int frameLen )
+	{
+		long n = 1 << ( nbSubSteps + 1 );
+		long cost = n;
+		for ( int currentStep = 2; currentStep <= nbLocs - 1; currentStep++ )
+		{
+			n <<= nbSubSteps;
+			cost += n;
+			if ( doFrame && currentStep < nbLocs - 1 )
+				while ( n >= ( 1L << frameLen ) )
+					n /= 2;
+		}
+		return cost;
+	}
+
+	/**
+	 * Returns the number of sub-localizations of a track with the specified
+	 * number of localizations.
+	 */
+	int nbSubLocs( final int nbLocs )
+	{
+		return ( nbLocs - 1 ) * nbSubSteps + 1;
+	}
+
+	/**
+	 * Writes the probabilities of the oldest state of the sequences into the
+	 * specified row of the pred array, just before this state is fused away.
+	 */
+	private void predictLastState(
+			final double[][] obs,
+			final double[][] Km,
+			final double[] Ks,
+			final double[] LP,
+			final double[] LPPred,
+			final int n,
+			final int stateBit,
+			final double[] pred,
+			final int rowPred )
+	{
+		forEachRange( n, true, ( from, to ) -> KERNELS.logIntegratedTerms( localizationError, tables, obs, n, Km, Ks, LP, LPPred, from, to ) );
+		double maxLPPred = Double.NEGATIVE_INFINITY;
+		for ( int r = 0; r < n; r++ )
+			maxLPPred = Math.max( maxLPPred, LPPred[ r ] );
+
+		double conditionalSumPPred0 = 0.;
+		double conditionalSumPPred1 = 0.;
+		for ( int r = 0; r < n; r++ )
+		{
+			final double p = Math.exp( LPPred[ r ] - maxLPPred );
+			if ( ( ( r >> stateBit ) & 1 ) == 0 )
+				conditionalSumPPred0 += p;
+			else
+				conditionalSumPPred1 += p;
+		}
+		final double sumPPred = conditionalSumPPred0 + conditionalSumPPred1;
+		pred[ 2 * rowPred ] = conditionalSumPPred0 / sumPPred;
+		pred[ 2 * rowPred + 1 ] = conditionalSumPPred1 / sumPPred;
+	}
+
+	/**
+	 * Returns the log of the sum of the exponential of the <code>n</code>
+	 * elements of the specified array starting at <code>from</code>.
+	 */
+	static double logSumExp( final double[] LP, final int from, final int n )
+	{
+		double maxLP = Double.NEGATIVE_INFINITY;
+		for ( int r = from; r < from + n; r++ )
+			maxLP = Math.max( maxLP, LP[ r ] );
+		if ( maxLP == Double.NEGATIVE_INFINITY )
+			return maxLP;
+
+		double sumP = 0.;
+		for ( int r = from; r < from + n; r++ )
+			sumP += Math.exp( LP[ r ] - maxLP );
+		return maxLP + Math.log( sumP );
+	}
+
+	/**
+	 * Applies the specified operation to the range <code>[0, size)</code>,
+	 * split across fork-join tasks if the range is large, the operation can
+	 * be split, and we are running in a fork-join pool.
+	 */
+	private static void forEachRange( final int size, final boolean splittable, final RangeOperation operation )
+	{
+		if ( !splittable || size < PARALLEL_THRESHOLD || !ForkJoinTask.inForkJoinPool() )
+		{
+			operation.apply( 0, size );
+			return;
+		}
+		final int parallelism = ForkJoinTask.getPool().getParallelism();
+		final int chunkSize = Math.max( MIN_CHUNK_SIZE, size / ( 4 * parallelism ) );
+		new RangeTask( operation, 0, size, chunkSize ).invoke();
+	}
+
+	@FunctionalInterface
+	private interface RangeOperation
+	{
+		void apply( int from, int to );
+	}
+
+	/**
+	 * Splits a range in halves until they are smaller than the chunk size.
+	 * Split points are kept on multiples of {@link #MIN_CHUNK_SIZE}.
+	 */
+	private static final class RangeTask extends RecursiveAction
+	{
+
+		private static final long serialVersionUID = 1L;
+
+		private final RangeOperation operation;
+
+		private final int from;
+
+		private final int to;
+
+		private final int chunkSize;
+
+		private RangeTask( final RangeOperation operation, final int from, final int to, final int chunkSize )
+		{
+			this.operation = operation;
+			this.from = from;
+			this.to = to;
+			this.chunkSize = chunkSize;
+		}
+
+		@Override
+		protected void compute()
+		{
+			final int mid = from + ( ( ( to - from ) / 2 ) & -MIN_CHUNK_SIZE );
+			if ( to - from <= chunkSize || mid == from )
+			{
+				operation.apply( from, to );
+				return;
+			}
+			invokeAll(
+					new RangeTask( operation, from, mid, chunkSize ),
+					new RangeTask( operation, mid, to, chunkSize ) );
+		}
+	}
+
+	/**
+	 * Repeats in place each of the <code>n</code> first elements of the
+	 * specified array <code>fanOut</code> times.
+	 */
+	static void repeatLines( final double[] M, final int n, final int fanOut )
+	{
+		for ( int r = n - 1; r >= 0; r-- )
+		{
+			final double val = M[ r ];
+			final int nr = fanOut * r;
+			for ( int inc = 0; inc < fanOut; inc++ )
+				M[ nr + inc ] = val;
+		}
+	}
+}
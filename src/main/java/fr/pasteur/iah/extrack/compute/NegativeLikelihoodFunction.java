@@ -22,24 +22,55 @@
 package fr.pasteur.iah.extrack.compute;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
+import java.util.TreeMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import Jama.Matrix;
 import net.imglib2.algorithm.MultiThreaded;
-import pal.math.MultivariateFunction;
+import pal.math.MFWithGradient;
 
-public class NegativeLikelihoodFunction implements MultivariateFunction, MultiThreaded
+public class NegativeLikelihoodFunction implements MFWithGradient, MultiThreaded, AutoCloseable
 {
 
 	private static final int N_ARGS = 5;
 
-	private final Map< Integer, Matrix > Cs;
+	/**
+	 * Largest total number of state sequences of a batch of tracks evaluated
+	 * together. Chosen so that the buffers of a batch stay in the CPU cache.
+	 */
+	private static final int BATCH_MAX_STATES = 1 << 13;
+
+	/**
+	 * Largest number of tracks in a batch.
+	 */
+	private static final int BATCH_MAX_TRACKS = 256;
+
+	/**
+	 * Number of tasks per thread an evaluation is split into.
+	 */
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	/**
+	 * Number of recent evaluations kept by the cache.
+	 */
+	private static final int CACHE_SIZE = 64;
+
+	/**
+	 * Per-thread workspaces of the static evaluation that takes no
+	 * workspaces. They grow to the largest track evaluated by their thread
+	 * and are kept for the next evaluations.
+	 */
+	private static final ThreadLocal< TrackStateWorkspace > SHARED_WORKSPACES = new ThreadLocal<>();
+
+	private final TrackStore store;
 
 	private final int nbSubSteps;
 
@@ -57,6 +88,74 @@ public class NegativeLikelihoodFunction implements MultivariateFunction, MultiTh
 
 	private ExecutorService executorService;
 
+	/**
+	 * The pool created by this function when it does not run on a shared
+	 * executor service. <code>null</code> otherwise.
+	 */
+	private ForkJoinPool ownPool;
+
+	/**
+	 * One workspace per thread of the executor service, reused across tracks
+	 * and across evaluations.
+	 */
+	private ThreadLocal< TrackStateWorkspace > workspaces;
+
+	/**
+	 * The indices of the tracks in the store, grouped in batches of tracks
+	 * with the same length.
+	 */
+	private List< int[] > batches;
+
+	/**
+	 * Index of the first batch of each task of an evaluation, followed by
+	 * the number of batches.
+	 */
+	private int[] chunkStarts;
+
+	/**
+	 * Estimated fraction of the threads kept busy by an evaluation, see
+	 * {@link #getParallelEfficiency()}.
+	 */
+	private double parallelEfficiency;
+
+	/**
+	 * Pruning cutoff, see {@link PrunedTrackState}. Infinite when pruning is
+	 * off.
+	 */
+	private double logCutoff = Double.POSITIVE_INFINITY;
+
+	/**
+	 * Pruning beam width, see {@link PrunedTrackState}. 0 when there is no
+	 * beam.
+	 */
+	private int beamWidth = 0;
+
+	/**
+	 * Largest fraction of probability mass discarded by pruning for one track
+	 * during the last evaluation.
+	 */
+	private volatile double discardedMass = 0.;
+
+	/**
+	 * Values of the most recent evaluations, keyed by the clamped parameter
+	 * vector. The line searches of the optimizers often come back to a point
+	 * they already evaluated, especially when it is clamped to the bounds.
+	 */
+	private final Map< ParameterKey, Double > cache = new LinkedHashMap< ParameterKey, Double >( CACHE_SIZE, 0.75f, true )
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry( final Map.Entry< ParameterKey, Double > eldest )
+		{
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private long cacheHits = 0;
+
+	private long cacheMisses = 0;
+
 	public NegativeLikelihoodFunction(
 			final Map< Integer, Matrix > Cs,
 			final int nbSubSteps,
@@ -64,14 +163,65 @@ public class NegativeLikelihoodFunction implements MultivariateFunction, MultiTh
 			final int frameLen,
 			final boolean doPred )
 	{
-		this.Cs = Cs;
+		this( TrackStore.of( Cs ), nbSubSteps, doFrame, frameLen, doPred, null );
+	}
+
+	public NegativeLikelihoodFunction(
+			final Map< Integer, Matrix > Cs,
+			final int nbSubSteps,
+			final boolean doFrame,
+			final int frameLen,
+			final boolean doPred,
+			final ExTrackComputeContext context )
+	{
+		this( TrackStore.of( Cs ), nbSubSteps, doFrame, frameLen, doPred, context );
+	}
+
+	/**
+	 * Creates a likelihood function over the tracks of the specified store,
+	 * that runs its tasks on the pool of the specified context.
+	 *
+	 * @param store
+	 *            the tracks.
+	 * @param nbSubSteps
+	 *            the number of sub-steps.
+	 * @param doFrame
+	 *            whether state sequences are fused when they get longer than
+	 *            <code>frameLen</code>.
+	 * @param frameLen
+	 *            the maximal length of the state sequences.
+	 * @param doPred
+	 *            whether to compute state predictions.
+	 * @param context
+	 *            the compute context. If <code>null</code>, the function
+	 *            creates its own pool, with half of the available processors,
+	 *            which is shut down by {@link #close()}.
+	 */
+	public NegativeLikelihoodFunction(
+			final TrackStore store,
+			final int nbSubSteps,
+			final boolean doFrame,
+			final int frameLen,
+			final boolean doPred,
+			final ExTrackComputeContext context )
+	{
+		this.store = store;
 		this.nbSubSteps = nbSubSteps;
 		this.doFrame = doFrame;
 		this.frameLen = frameLen;
 		this.doPred = doPred;
 		this.lowerBound = new double[ N_ARGS ];
 		this.upperBound = new double[ N_ARGS ];
-		setNumThreads();
+		if ( context == null )
+		{
+			setNumThreads();
+		}
+		else
+		{
+			this.numThreads = context.getNumThreads();
+			this.executorService = context.getPool();
+		}
+		setBatching( true );
 
 		/*
 		 * 0. localizationError
@@ -109,10 +259,539 @@ public class NegativeLikelihoodFunction implements MultivariateFunction, MultiTh
 		upperBound[ 4 ] = 0.99;
 	}
 
+	/**
+	 * Sets whether tracks with the same number of localizations are evaluated
+	 * together in batches. Batching is on by default and speeds up datasets
+	 * made of many short tracks. The likelihood is the same either way.
+	 *
+	 * @param batching
+	 *            if <code>false</code>, tracks are evaluated one by one.
+	 */
+	public void setBatching( final boolean batching )
+	{
+		this.batches = batching
+				? batches( store, nbSubSteps, doFrame, frameLen )
+				: batches( store, nbSubSteps, doFrame, frameLen, 1 );
+
+		// Size the workspaces for the largest batch.
+		final int nDims = store.nDims();
+		int maxNbStates = 1;
+		int maxNbSubLocs = 1;
+		int maxNbTracks = 1;
+		for ( final int[] batch : batches )
+		{
+			final int nbLocs = store.nbLocs( batch[ 0 ] );
+			maxNbStates = Math.max( maxNbStates, batch.length * FlatTrackState.maxNbStates( nbLocs, nbSubSteps, doFrame, frameLen ) );
+			maxNbSubLocs = Math.max( maxNbSubLocs, ( nbLocs - 1 ) * nbSubSteps + 1 );
+			maxNbTracks = Math.max( maxNbTracks, batch.length );
+		}
+		final int wsDims = nDims;
+		final int wsNbStates = maxNbStates;
+		final int wsNbSubLocs = maxNbSubLocs;
+		final int wsNbTracks = maxNbTracks;
+		this.workspaces = ThreadLocal.withInitial( () -> new TrackStateWorkspace( wsDims, wsNbStates, wsNbSubLocs, wsNbTracks ) );
+		updateChunks();
+		clearCache();
+	}
+
+	private void updateChunks()
+	{
+		final long[] costs = new long[ batches.size() ];
+		for ( int b = 0; b < costs.length; b++ )
+		{
+			final int[] batch = batches.get( b );
+			costs[ b ] = batch.length * FlatTrackState.cost( store.nbLocs( batch[ 0 ] ), nbSubSteps, doFrame, frameLen );
+		}
+		this.chunkStarts = chunkStarts( costs, numThreads );
+		this.parallelEfficiency = parallelEfficiency( costs, numThreads );
+	}
+
+	/**
+	 * Estimates the fraction of the threads kept busy when running items of
+	 * the specified costs. An evaluation lasts at least as long as its most
+	 * expensive item, and at least as long as the total cost shared by all
+	 * the threads. The estimate is the ratio of the work to the capacity of
+	 * the threads over that duration.
+	 *
+	 * @param costs
+	 *            the cost of each item.
+	 * @param numThreads
+	 *            the number of threads.
+	 * @return the estimated efficiency, between 0 and 1.
+	 */
+	static double parallelEfficiency( final long[] costs, final int numThreads )
+	{
+		long total = 0;
+		long max = 0;
+		for ( final long cost : costs )
+		{
+			total += cost;
+			max = Math.max( max, cost );
+		}
+		if ( total == 0 )
+			return 1.;
+		final double duration = Math.max( ( double ) max, ( double ) total / numThreads );
+		return total / ( duration * numThreads );
+	}
+
+	/**
+	 * Returns an estimate of the fraction of the threads kept busy by an
+	 * evaluation. It is low when there are too few tracks for all the
+	 * threads, or when one long track lasts longer than all the others
+	 * together. Other work can then run alongside an evaluation without
+	 * slowing it down.
+	 *
+	 * @return the estimated efficiency, between 0 and 1.
+	 */
+	public double getParallelEfficiency()
+	{
+		return parallelEfficiency;
+	}
+
+	/**
+	 * Returns the number of tasks an evaluation is split into, about
+	 * four per thread when there are enough tracks.
+	 * See {@link #getParallelEfficiency()} to know whether an evaluation uses
+	 * all the threads.
+	 *
+	 * @return the number of tasks.
+	 */
+	public int getNbTasks()
+	{
+		return chunkStarts.length - 1;
+	}
+
+	/**
+	 * Enables the approximate evaluation of {@link PrunedTrackState}, which
+	 * drops the unlikely state sequences of each track. This makes larger
+	 * <code>frameLen</code> values affordable. Pruning is off by default.
+	 *
+	 * @param logCutoff
+	 *            state sequences whose log-probability is lower than the
+	 *            best one minus this value are dropped. Use
+	 *            {@link Double#POSITIVE_INFINITY} for no cutoff.
+	 * @param beamWidth
+	 *            the largest number of state sequences kept per track before
+	 *            each detection. Use 0 for no beam.
+	 */
+	public void setPruning( final double logCutoff, final int beamWidth )
+	{
+		if ( !( logCutoff > 0. ) )
+			throw new IllegalArgumentException( "The log-probability cutoff must be positive, was " + logCutoff );
+		if ( beamWidth < 0 )
+			throw new IllegalArgumentException( "The beam width must be positive or 0, was " + beamWidth );
+		this.logCutoff = logCutoff;
+		this.beamWidth = beamWidth;
+		clearCache();
+	}
+
+	/**
+	 * Returns whether the tracks are evaluated with pruning.
+	 *
+	 * @return <code>true</code> if pruning is on.
+	 */
+	public boolean isPruning()
+	{
+		return logCutoff != Double.POSITIVE_INFINITY || beamWidth > 0;
+	}
+
+	/**
+	 * Returns the largest fraction of the probability mass that was
+	 * discarded by pruning for one track during the last evaluation. It is 0
+	 * when pruning is off.
+	 *
+	 * @return the discarded fraction, between 0 and 1.
+	 */
+	public double getDiscardedMass()
+	{
+		return discardedMass;
+	}
+
+	/**
+	 * Returns the number of evaluations answered from the cache of recent
+	 * values since the cache was last cleared.
+	 *
+	 * @return the number of cache hits.
+	 */
+	public long getCacheHits()
+	{
+		synchronized ( cache )
+		{
+			return cacheHits;
+		}
+	}
+
+	/**
+	 * Returns the number of evaluations that had to be computed since the
+	 * cache of recent values was last cleared.
+	 *
+	 * @return the number of cache misses.
+	 */
+	public long getCacheMisses()
+	{
+		synchronized ( cache )
+		{
+			return cacheMisses;
+		}
+	}
+
+	/**
+	 * Empties the cache of recent values and resets its counters.
+	 */
+	public void clearCache()
+	{
+		synchronized ( cache )
+		{
+			cache.clear();
+			cacheHits = 0;
+			cacheMisses = 0;
+		}
+	}
+
+	/**
+	 * Computes the negative log-likelihood of the tracks. The argument is
+	 * clamped to the bounds of the function first, and the value is looked up
+	 * in a cache of the most recent evaluations before being computed. On a
+	 * cache hit, {@link #getDiscardedMass()} is not updated.
+	 */
 	@Override
 	public double evaluate( final double[] argument )
 	{
-		return evalFun( argument, Cs, nbSubSteps, doFrame, frameLen, doPred, executorService );
+		final double[] clamped = new double[ N_ARGS ];
+		for ( int i = 0; i < N_ARGS; i++ )
+			clamped[ i ] = Math.min( upperBound[ i ], Math.max( lowerBound[ i ], argument[ i ] ) );
+		final ParameterKey key = new ParameterKey( clamped );
+		synchronized ( cache )
+		{
+			final Double cached = cache.get( key );
+			if ( cached != null )
+			{
+				cacheHits++;
+				return cached.doubleValue();
+			}
+			cacheMisses++;
+		}
+
+		final double value = isPruning()
+				? evaluatePruned( clamped )
+				: evaluateExact( clamped );
+		synchronized ( cache )
+		{
+			cache.put( key, Double.valueOf( value ) );
+		}
+		return value;
+	}
+
+	private double evaluateExact( final double[] argument )
+	{
+		final double localizationError = argument[ 0 ];
+		final double diffusionLength0 = argument[ 1 ];
+		final double diffusionLength1 = argument[ 2 ];
+		final double F0 = argument[ 3 ];
+		final double probabilityOfUnbindingContinuous = argument[ 4 ];
+
+		final StateTables tables = StateTables.get(
+				diffusionLength0,
+				diffusionLength1,
+				F0,
+				probabilityOfUnbindingContinuous,
+				nbSubSteps );
+		final FlatTrackState state = new FlatTrackState(
+				localizationError,
+				tables,
+				doFrame,
+				frameLen,
+				doPred );
+
+		final double[][] partials = forEachChunk( 1, ( batch, workspace, partial ) -> {
+			final double[] logProbas = new double[ batch.length ];
+			state.evalLogLikelihoods( store, batch, workspace, logProbas );
+			for ( final double logProba : logProbas )
+				partial[ 0 ] += logProba;
+		} );
+
+		double sumLogProbas = 0.;
+		for ( final double[] partial : partials )
+			sumLogProbas += partial[ 0 ];
+		discardedMass = 0.;
+		return -sumLogProbas;
+	}
+
+	/**
+	 * Computes the negative log-likelihood and its gradient with respect to
+	 * the parameters, by forward-mode differentiation of the recursion. See
+	 * {@link TrackStateGradient}. The exact likelihood is always used, even
+	 * when pruning is on.
+	 * <p>
+	 * Like {@link #evaluate(double[])}, the argument is clamped to the bounds
+	 * of the function. The gradient is the one of the clamped function: it is
+	 * zero along the parameters that lie beyond a bound. Without pruning, the
+	 * value is also stored in the cache of {@link #evaluate(double[])}.
+	 */
+	@Override
+	public double evaluate( final double[] argument, final double[] gradient )
+	{
+		final double[] clamped = new double[ N_ARGS ];
+		for ( int i = 0; i < N_ARGS; i++ )
+			clamped[ i ] = Math.min( upperBound[ i ], Math.max( lowerBound[ i ], argument[ i ] ) );
+		final StateTables tables = StateTables.get(
+				clamped[ 1 ],
+				clamped[ 2 ],
+				clamped[ 3 ],
+				clamped[ 4 ],
+				nbSubSteps );
+		final TrackStateGradient state = new TrackStateGradient(
+				clamped[ 0 ],
+				tables,
+				doFrame,
+				frameLen );
+
+		// Sum of log-likelihoods, then of gradients.
+		final double[][] partials = forEachChunk( 1 + N_ARGS, ( batch, workspace, partial ) -> {
+			final double[] trackGradient = new double[ N_ARGS ];
+			for ( final int track : batch )
+			{
+				partial[ 0 ] += state.evalLogLikelihood( store, track, workspace, trackGradient );
+				for ( int k = 0; k < N_ARGS; k++ )
+					partial[ 1 + k ] += trackGradient[ k ];
+			}
+		} );
+
+		double sumLogProbas = 0.;
+		final double[] sumGradient = new double[ N_ARGS ];
+		for ( final double[] partial : partials )
+		{
+			sumLogProbas += partial[ 0 ];
+			for ( int k = 0; k < N_ARGS; k++ )
+				sumGradient[ k ] += partial[ 1 + k ];
+		}
+		for ( int k = 0; k < N_ARGS; k++ )
+			gradient[ k ] = ( clamped[ k ] == argument[ k ] ) ? -sumGradient[ k ] : 0.;
+		discardedMass = 0.;
+		if ( !isPruning() )
+		{
+			synchronized ( cache )
+			{
+				cache.put( new ParameterKey( clamped ), Double.valueOf( -sumLogProbas ) );
+			}
+		}
+		return -sumLogProbas;
+	}
+
+	@Override
+	public void computeGradient( final double[] argument, final double[] gradient )
+	{
+		evaluate( argument, gradient );
+	}
+
+	private double evaluatePruned( final double[] argument )
+	{
+		final StateTables tables = StateTables.get(
+				argument[ 1 ],
+				argument[ 2 ],
+				argument[ 3 ],
+				argument[ 4 ],
+				nbSubSteps );
+		final PrunedTrackState state = new PrunedTrackState(
+				argument[ 0 ],
+				tables,
+				doFrame,
+				frameLen,
+				logCutoff,
+				beamWidth );
+
+		// Pruning is per track, batches are only used to group tasks.
+		final double[][] partials = forEachChunk( 2, ( batch, workspace, partial ) -> {
+			for ( final int track : batch )
+			{
+				partial[ 0 ] += state.evalLogLikelihood( store, track, workspace );
+				partial[ 1 ] = Math.max( partial[ 1 ], workspace.getDiscardedMass() );
+			}
+		} );
+
+		double sumLogProbas = 0.;
+		double maxDiscarded = 0.;
+		for ( final double[] partial : partials )
+		{
+			sumLogProbas += partial[ 0 ];
+			maxDiscarded = Math.max( maxDiscarded, partial[ 1 ] );
+		}
+		discardedMass = maxDiscarded;
+		return -sumLogProbas;
+	}
+
+	/**
+	 * Operation on one batch of tracks, accumulating its results into the
+	 * values of its chunk.
+	 */
+	@FunctionalInterface
+	private interface BatchOperation
+	{
+		void accumulate( int[] batch, TrackStateWorkspace workspace, double[] partial );
+	}
+
+	/**
+	 * Runs the specified operation on all the batches, with one task per
+	 * chunk of batches, and waits for all the tasks to complete.
+	 *
+	 * @param nValues
+	 *            the number of values accumulated by the operation.
+	 * @param operation
+	 *            the operation.
+	 * @return the values accumulated by each chunk.
+	 * @throws java.util.concurrent.CompletionException
+	 *             if a task failed or if the wait was interrupted. The sums
+	 *             would then miss some tracks, so no value is returned.
+	 */
+	private double[][] forEachChunk( final int nValues, final BatchOperation operation )
+	{
+		final int[] starts = chunkStarts;
+		final int nChunks = starts.length - 1;
+		final double[][] partials = new double[ nChunks ][ nValues ];
+		final TaskGroup tasks = new TaskGroup( executorService, nChunks );
+		for ( int c = 0; c < nChunks; c++ )
+		{
+			final int from = starts[ c ];
+			final int to = starts[ c + 1 ];
+			final double[] partial = partials[ c ];
+			tasks.submit( () -> {
+				final TrackStateWorkspace workspace = workspaces.get();
+				for ( int b = from; b < to; b++ )
+					operation.accumulate( batches.get( b ), workspace, partial );
+			} );
+		}
+		tasks.join();
+		return partials;
+	}
+
+	/**
+	 * Splits a sequence of work items in contiguous chunks of similar cost,
+	 * about {@value #CHUNKS_PER_THREAD} per thread so that threads that finish
+	 * early can take more. When the items are sorted by decreasing cost, the
+	 * expensive items get a chunk of their own and the cheap ones are grouped,
+	 * so the chunk size adapts to the distribution of track lengths.
+	 *
+	 * @param costs
+	 *            the cost of each item.
+	 * @param numThreads
+	 *            the number of threads.
+	 * @return the index of the first item of each chunk, followed by the
+	 *         number of items.
+	 */
+	static int[] chunkStarts( final long[] costs, final int numThreads )
+	{
+		long total = 0;
+		for ( final long cost : costs )
+			total += cost;
+		final long target = Math.max( 1, total / ( CHUNKS_PER_THREAD * numThreads ) );
+
+		final int[] starts = new int[ costs.length + 1 ];
+		int nChunks = 0;
+		long chunkCost = 0;
+		for ( int i = 0; i < costs.length; i++ )
+		{
+			if ( chunkCost == 0 )
+				starts[ nChunks++ ] = i;
+			chunkCost += costs[ i ];
+			if ( chunkCost >= target )
+				chunkCost = 0;
+		}
+		starts[ nChunks ] = costs.length;
+		return Arrays.copyOf( starts, nChunks + 1 );
+	}
+
+	/**
+	 * Returns the number of threads of the specified executor service, if it
+	 * is a {@link ForkJoinPool} or a bounded {@link ThreadPoolExecutor}, and
+	 * the number of processors otherwise.
+	 *
+	 * @param executorService
+	 *            the executor service.
+	 * @return the number of threads, at least 1.
+	 */
+	static int numThreads( final ExecutorService executorService )
+	{
+		if ( executorService instanceof ForkJoinPool )
+			return ( ( ForkJoinPool ) executorService ).getParallelism();
+		if ( executorService instanceof ThreadPoolExecutor )
+		{
+			final int maximumPoolSize = ( ( ThreadPoolExecutor ) executorService ).getMaximumPoolSize();
+			// Unbounded for a cached thread pool.
+			if ( maximumPoolSize < Integer.MAX_VALUE )
+				return Math.max( 1, maximumPoolSize );
+		}
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Groups the tracks of the specified store in batches of tracks with the
+	 * same number of localizations, so that they can be evaluated together by
+	 * {@link FlatTrackState#evalLogLikelihoods(TrackStore, int[], TrackStateWorkspace, double[])}.
+	 * The size of the batches is chosen so that the total number of state
+	 * sequences of a batch stays small. Long tracks end up alone in their
+	 * batch.
+	 * <p>
+	 * The batches are sorted by decreasing cost, estimated with
+	 * {@link FlatTrackState#cost(int, int, boolean, int)}. Submitted in this
+	 * order, the most expensive batches start first and the cheap ones fill
+	 * the gaps at the end, instead of one long track delaying the end of the
+	 * evaluation.
+	 *
+	 * @param store
+	 *            the tracks.
+	 * @param nbSubSteps
+	 *            the number of sub-steps.
+	 * @param doFrame
+	 *            whether state sequences are fused when they get longer than
+	 *            <code>frameLen</code>.
+	 * @param frameLen
+	 *            the maximal length of the state sequences.
+	 * @return a new list of batches, each made of track indices in the
+	 *         store.
+	 */
+	public static List< int[] > batches(
+			final TrackStore store,
+			final int nbSubSteps,
+			final boolean doFrame,
+			final int frameLen )
+	{
+		return batches( store, nbSubSteps, doFrame, frameLen, BATCH_MAX_TRACKS );
+	}
+
+	private static List< int[] > batches(
+			final TrackStore store,
+			final int nbSubSteps,
+			final boolean doFrame,
+			final int frameLen,
+			final int maxNbTracks )
+	{
+		final Map< Integer, List< Integer > > byLength = new TreeMap<>();
+		for ( int t = 0; t < store.size(); t++ )
+			byLength.computeIfAbsent( Integer.valueOf( store.nbLocs( t ) ), k -> new ArrayList<>() ).add( Integer.valueOf( t ) );
+
+		final List< int[] > batches = new ArrayList<>();
+		for ( final Map.Entry< Integer, List< Integer > > entry : byLength.entrySet() )
+		{
+			final int nbLocs = entry.getKey().intValue();
+			final List< Integer > sameLength = entry.getValue();
+			final int nbStates = FlatTrackState.maxNbStates( nbLocs, nbSubSteps, doFrame, frameLen );
+			final int batchSize = Math.max( 1, Math.min( maxNbTracks, BATCH_MAX_STATES / nbStates ) );
+			for ( int from = 0; from < sameLength.size(); from += batchSize )
+			{
+				final int to = Math.min( sameLength.size(), from + batchSize );
+				final int[] batch = new int[ to - from ];
+				for ( int i = from; i < to; i++ )
+					batch[ i - from ] = sameLength.get( i ).intValue();
+				batches.add( batch );
+			}
+		}
+
+		// Longest processing time first.
+		final Map< int[], Long > costs = new IdentityHashMap<>( 2 * batches.size() );
+		for ( final int[] batch : batches )
+			costs.put( batch, Long.valueOf( batch.length * FlatTrackState.cost( store.nbLocs( batch[ 0 ] ), nbSubSteps, doFrame, frameLen ) ) );
+		batches.sort( Comparator.comparing( costs::get, Comparator.reverseOrder() ) );
+		return batches;
 	}
 
 	@Override
@@ -141,6 +820,45 @@ public class NegativeLikelihoodFunction implements MultivariateFunction, MultiTh
 			final int frameLen,
 			final boolean doPred,
 			final ExecutorService executorService )
+	{
+		return evalFun( params, tracks, nbSubSteps, doFrame, frameLen, doPred, executorService, SHARED_WORKSPACES );
+	}
+
+	/**
+	 * Computes the negative log-likelihood of the specified tracks.
+	 *
+	 * @param params
+	 *            the parameter vector.
+	 * @param tracks
+	 *            the tracks.
+	 * @param nbSubSteps
+	 *            the number of sub-steps.
+	 * @param doFrame
+	 *            whether state sequences are fused when they get longer than
+	 *            <code>frameLen</code>.
+	 * @param frameLen
+	 *            the maximal length of the state sequences.
+	 * @param doPred
+	 *            whether to compute state predictions.
+	 * @param executorService
+	 *            the executor service to run the per-track computations.
+	 * @param workspaces
+	 *            the per-thread workspaces. If a thread has no workspace yet,
+	 *            a new one is created and stored for later calls.
+	 * @return the negative log-likelihood.
+	 * @throws java.util.concurrent.CompletionException
+	 *             if the evaluation of a track failed or if the wait was
+	 *             interrupted.
+	 */
+	public static final double evalFun(
+			final double[] params,
+			final Map< Integer, Matrix > tracks,
+			final int nbSubSteps,
+			final boolean doFrame,
+			final int frameLen,
+			final boolean doPred,
+			final ExecutorService executorService,
+			final ThreadLocal< TrackStateWorkspace > workspaces )
 	{
 		final double localizationError = params[ 0 ];
 		final double diffusionLength0 = params[ 1 ];
@@ -149,55 +867,96 @@ public class NegativeLikelihoodFunction implements MultivariateFunction, MultiTh
 		final double probabilityOfUnbindingContinuous = params[ 4 ];
 
 		double sumLogProbas = 0.; // all tracks
-		final TrackState state = new TrackState(
-				localizationError,
+
+		// Built once and shared read-only by all the tracks.
+		final StateTables tables = StateTables.get(
 				diffusionLength0,
 				diffusionLength1,
 				F0,
 				probabilityOfUnbindingContinuous,
-				nbSubSteps,
+				nbSubSteps );
+		final FlatTrackState state = new FlatTrackState(
+				localizationError,
+				tables,
 				doFrame,
 				frameLen,
 				doPred );
-		
-		
-		final List< Future< Double > > futures = new ArrayList<>( tracks.size() );
-		for ( final Integer trackID : tracks.keySet() )
-		{
-			final Future< Double > future = executorService.submit( new Callable< Double >()
-			{
 
-				@Override
-				public Double call() throws Exception
+		// Longest tracks first, in chunks of similar cost.
+		final List< Matrix > sorted = new ArrayList<>( tracks.values() );
+		sorted.sort( Comparator.comparingInt( ( final Matrix track ) -> track.getRowDimension() ).reversed() );
+		final long[] costs = new long[ sorted.size() ];
+		for ( int i = 0; i < costs.length; i++ )
+			costs[ i ] = FlatTrackState.cost( sorted.get( i ).getRowDimension(), nbSubSteps, doFrame, frameLen );
+		final int[] starts = chunkStarts( costs, numThreads( executorService ) );
+		final int nChunks = starts.length - 1;
+
+		final double[] partials = new double[ nChunks ];
+		final TaskGroup tasks = new TaskGroup( executorService, nChunks );
+		for ( int c = 0; c < nChunks; c++ )
+		{
+			final int chunk = c;
+			tasks.submit( () -> {
+				for ( int i = starts[ chunk ]; i < starts[ chunk + 1 ]; i++ )
 				{
-					final Matrix track = tracks.get( trackID );
-					final Matrix[] vals = state.eval( track );
-					final Matrix probabilities = vals[ 0 ];
-
-					double sumProba = 0.; // one track
-					for ( int r = 0; r < probabilities.getRowDimension(); r++ )
-						sumProba += probabilities.get( r, 0 );
-
-					return Double.valueOf( sumProba );
+					final Matrix track = sorted.get( i );
+					TrackStateWorkspace workspace = workspaces.get();
+					if ( workspace == null )
+					{
+						workspace = state.newWorkspace( track );
+						workspaces.set( workspace );
+					}
+					// Log of the sum of probabilities of one track.
+					partials[ chunk ] += state.evalLogLikelihood( track, workspace );
 				}
 			} );
-			futures.add( future );
 		}
+		// Rethrows the failure of a task instead of returning a partial sum.
+		tasks.join();
+		for ( final double partial : partials )
+			sumLogProbas += partial;
+		return -sumLogProbas;
+	}
 
-		for ( final Future< Double > future : futures )
+	/**
+	 * Makes this function run its tasks on the specified executor service,
+	 * for instance to share one pool between several functions evaluated
+	 * concurrently. The executor service is not shut down by this function.
+	 * A {@link ForkJoinPool} lets idle threads help with the states of long
+	 * tracks.
+	 *
+	 * @param executorService
+	 *            the executor service.
+	 */
+	public void setExecutorService( final ExecutorService executorService )
+	{
+		shutdownOwnPool();
+		this.executorService = executorService;
+		this.numThreads = numThreads( executorService );
+		if ( batches != null )
+			updateChunks();
+	}
+
+	/**
+	 * Shuts down the pool created by this function, if any. A pool of a
+	 * compute context or set with
+	 * {@link #setExecutorService(ExecutorService)} is left running. The
+	 * function must not be evaluated after it is closed, unless it is given
+	 * another executor service.
+	 */
+	@Override
+	public void close()
+	{
+		shutdownOwnPool();
+	}
+
+	private void shutdownOwnPool()
+	{
+		if ( ownPool != null )
 		{
-			Double val;
-			try
-			{
-				val = future.get();
-				sumLogProbas += Math.log( val.doubleValue() );
-			}
-			catch ( InterruptedException | ExecutionException e )
-			{
-				e.printStackTrace();
-			}
+			ownPool.shutdown();
+			ownPool = null;
 		}
-		return -sumLogProbas;
 	}
 
 	@Override
@@ -206,11 +965,22 @@ public class NegativeLikelihoodFunction implements MultivariateFunction, MultiTh
 		setNumThreads( Runtime.getRuntime().availableProcessors() / 2 );
 	}
 
+	/**
+	 * Makes this function run its tasks on its own pool, with the specified
+	 * number of threads. The pool previously created by this function, if
+	 * any, is shut down.
+	 */
 	@Override
 	public void setNumThreads( final int numThreads )
 	{
 		this.numThreads = Math.max( 1, numThreads );
-		this.executorService = Executors.newFixedThreadPool( numThreads );
+		// Replaces the previous pool instead of leaving its threads behind.
+		shutdownOwnPool();
+		// A fork-join pool lets idle threads help with the states of long tracks.
+		this.ownPool = new ForkJoinPool( this.numThreads );
+		this.executorService = ownPool;
+		if ( batches != null )
+			updateChunks();
 	}
 
 	@Override
@@ -0,0 +1,65 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fr.pasteur.iah.extrack.compute;
+
+import java.util.Arrays;
+
+/**
+ * Exact-match hash key made of a parameter vector and a few integer settings.
+ * The values are copied, so the key is not affected by later changes to the
+ * array it was built from.
+ */
+final class ParameterKey
+{
+
+	private final double[] values;
+
+	private final int[] settings;
+
+	private final int hash;
+
+	ParameterKey( final double[] values, final int... settings )
+	{
+		this.values = values.clone();
+		this.settings = settings.clone();
+		this.hash = 31 * Arrays.hashCode( this.values ) + Arrays.hashCode( this.settings );
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return hash;
+	}
+
+	@Override
+	public boolean equals( final Object obj )
+	{
+		if ( this == obj )
+			return true;
+		if ( !( obj instanceof ParameterKey ) )
+			return false;
+		final ParameterKey other = ( ParameterKey ) obj;
+		return hash == other.hash
+				&& Arrays.equals( values, other.values )
+				&& Arrays.equals( settings, other.settings );
+	}
+}
@@ -0,0 +1,480 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fr.pasteur.iah.extrack.compute;
+
+import java.util.Arrays;
+
+import Jama.Matrix;
+
+/**
+ * Approximate forward recursion that only keeps the most likely state
+ * sequences.
+ * <p>
+ * {@link FlatTrackState} keeps all the <code>2^frameLen</code> state
+ * sequences of a track, even though most of them are often hundreds of
+ * log-units below the best one. Here, before the sequences are extended to
+ * the next detection, the ones whose log-probability is more than
+ * <code>logCutoff</code> below the best one are dropped, and only the
+ * <code>beamWidth</code> best ones are kept. Because the sequences kept are
+ * not all the binary patterns of their width anymore, each one stores the
+ * pattern it encodes in an explicit id, with the same bit layout as the
+ * index of {@link FlatTrackState}. Sequences that only differ by their oldest
+ * state are matched by id when they are fused; a sequence whose partner was
+ * dropped is kept as is.
+ * <p>
+ * The fraction of the probability mass dropped at each step is recorded, and
+ * {@link TrackStateWorkspace#getDiscardedMass()} returns
+ * <code>1 - &prod;(1 - f<sub>k</sub>)</code> for the last track, an estimate
+ * of the relative error on its likelihood. With an infinite cutoff and no
+ * beam, the results are identical to the scalar kernels of
+ * {@link FlatTrackState}.
+ * <p>
+ * State sequences are limited to 30 sub-steps, which is only a limitation
+ * when not fusing them with <code>doFrame</code>.
+ */
+public class PrunedTrackState
+{
+
+	private static final int MAX_NB_COLS = 30;
+
+	private final double localizationError;
+
+	private final StateTables tables;
+
+	private final int nbSubSteps;
+
+	private final boolean doFrame;
+
+	private final int frameLen;
+
+	private final double logCutoff;
+
+	private final int beamWidth;
+
+	/**
+	 * Creates a pruned recursion.
+	 *
+	 * @param localizationError
+	 *            the localization error.
+	 * @param tables
+	 *            the state tables.
+	 * @param doFrame
+	 *            whether state sequences are fused when they get longer than
+	 *            <code>frameLen</code>.
+	 * @param frameLen
+	 *            the maximal length of the state sequences.
+	 * @param logCutoff
+	 *            state sequences whose log-probability is lower than the
+	 *            best one minus this value are dropped. Must be positive.
+	 *            Use {@link Double#POSITIVE_INFINITY} to disable.
+	 * @param beamWidth
+	 *            the largest number of state sequences kept before each
+	 *            detection. Use 0 to disable.
+	 */
+	public PrunedTrackState(
+			final double localizationError,
+			final StateTables tables,
+			final boolean doFrame,
+			final int frameLen,
+			final double logCutoff,
+			final int beamWidth )
+	{
+		if ( !( logCutoff > 0. ) )
+			throw new IllegalArgumentException( "The log-probability cutoff must be positive, was " + logCutoff );
+		if ( beamWidth < 0 )
+			throw new IllegalArgumentException( "The beam width must be positive or 0, was " + beamWidth );
+		this.localizationError = localizationError;
+		this.tables = tables;
+		this.nbSubSteps = tables.nbSubSteps;
+		this.doFrame = doFrame;
+		this.frameLen = frameLen;
+		this.logCutoff = logCutoff;
+		this.beamWidth = beamWidth;
+	}
+
+	/**
+	 * Returns the approximate log of the likelihood of the specified track.
+	 * The fraction of the probability mass that was discarded is then
+	 * available from the workspace.
+	 *
+	 * @param track
+	 *            the track to evaluate.
+	 * @param workspace
+	 *            the workspace to use. Must not be used concurrently by
+	 *            another thread.
+	 * @return the log-likelihood.
+	 */
+	public double evalLogLikelihood( final Matrix track, final TrackStateWorkspace workspace )
+	{
+		return evalLogLikelihood( TrackStore.of( track ), 0, workspace );
+	}
+
+	/**
+	 * Returns the approximate log of the likelihood of the specified track of
+	 * a store. See {@link #evalLogLikelihood(Matrix, TrackStateWorkspace)}.
+	 *
+	 * @param store
+	 *            the store containing the track.
+	 * @param track
+	 *            the index of the track in the store.
+	 * @param workspace
+	 *            the workspace to use. Must not be used concurrently by
+	 *            another thread.
+	 * @return the log-likelihood.
+	 */
+	public double evalLogLikelihood( final TrackStore store, final int track, final TrackStateWorkspace workspace )
+	{
+		final int m = forward( store, track, workspace, false );
+		return FlatTrackState.logSumExp( workspace.LP, 0, m );
+	}
+
+	/**
+	 * Returns the approximate state predictions of the specified track, one
+	 * row per localization, as {@link FlatTrackState#predict(Matrix,
+	 * TrackStateWorkspace)} does.
+	 *
+	 * @param track
+	 *            the track to evaluate.
+	 * @param workspace
+	 *            the workspace to use. Must not be used concurrently by
+	 *            another thread.
+	 * @return a new <code>nbLocs x 2</code> matrix.
+	 */
+	public Matrix predict( final Matrix track, final TrackStateWorkspace workspace )
+	{
+		return predict( TrackStore.of( track ), 0, workspace );
+	}
+
+	/**
+	 * Returns the approximate state predictions of the specified track of a
+	 * store. See {@link #predict(Matrix, TrackStateWorkspace)}.
+	 *
+	 * @param store
+	 *            the store containing the track.
+	 * @param track
+	 *            the index of the track in the store.
+	 * @param workspace
+	 *            the workspace to use. Must not be used concurrently by
+	 *            another thread.
+	 * @return a new <code>nbLocs x 2</code> matrix.
+	 */
+	public Matrix predict( final TrackStore store, final int track, final TrackStateWorkspace workspace )
+	{
+		final int m = forward( store, track, workspace, true );
+		final int nbLocs = store.nbLocs( track );
+		// A single localization has fewer sub-localizations than states.
+		final int nbRows = Math.min( nbCols( nbLocs ), ( nbLocs - 1 ) * nbSubSteps + 1 );
+		final double[] pred = workspace.pred;
+		for ( int rowPred = 0; rowPred < nbRows; rowPred++ )
+			conditionalProbabilities( workspace.LP, workspace.ids, m, rowPred, pred, rowPred );
+
+		final Matrix outPred = new Matrix( nbLocs, 2 );
+		for ( int rowOutPred = 0; rowOutPred < nbLocs; rowOutPred++ )
+		{
+			final int rowPred = rowOutPred * nbSubSteps;
+			outPred.set( rowOutPred, 0, pred[ 2 * rowPred ] );
+			outPred.set( rowOutPred, 1, pred[ 2 * rowPred + 1 ] );
+		}
+		return outPred;
+	}
+
+	/**
+	 * Runs the pruned forward recursion. When this method returns, the
+	 * workspace holds the final state sequences and their log-probabilities.
+	 *
+	 * @return the number of state sequences kept.
+	 */
+	private int forward( final TrackStore store, final int track, final TrackStateWorkspace workspace, final boolean computePred )
+	{
+		final int nbLocs = store.nbLocs( track );
+		final int nDims = store.nDims();
+		final int nbSubLocs = ( nbLocs - 1 ) * nbSubSteps + 1;
+		int nbCols = nbSubSteps + 1;
+		int m = 1 << nbCols;
+		workspace.ensureCapacity( nDims, m, nbSubLocs, 1 );
+		workspace.growStates( m );
+		final double[][] obs = workspace.obs;
+
+		/*
+		 * Initialize.
+		 */
+
+		for ( int c = 0; c < nDims; c++ )
+			Arrays.fill( workspace.Km[ c ], 0, m, store.get( track, nbLocs - 1, c ) );
+		for ( int r = 0; r < m; r++ )
+		{
+			final double ds = tables.diffusionLengths[ r ];
+			workspace.ids[ r ] = r;
+			workspace.Ks[ r ] = Math.sqrt( localizationError * localizationError + ds * ds );
+			workspace.LP[ r ] = tables.logTransitions[ r ];
+		}
+
+		/*
+		 * Iterate.
+		 */
+
+		final int fanOut = 1 << nbSubSteps;
+		if ( computePred )
+			Arrays.fill( workspace.pred, 0, 2 * nbSubLocs, -1. );
+
+		double keptMass = 1.;
+		int currentStep = 2;
+		int removeStep = 0;
+		while ( currentStep <= nbLocs - 1 )
+		{
+			final int nKept = prune( workspace, m );
+			if ( nKept < m )
+			{
+				keptMass *= 1. - workspace.discardedMass;
+				m = nKept;
+			}
+
+			workspace.growStates( m * fanOut );
+			m = repeat( workspace, m, fanOut );
+			nbCols += nbSubSteps;
+			if ( nbCols > MAX_NB_COLS )
+				throw new IllegalArgumentException( "State sequences longer than " + MAX_NB_COLS + " sub-steps are not supported." );
+
+			final int detectionRow = nbLocs - currentStep;
+			for ( int c = 0; c < nDims; c++ )
+				obs[ c ][ 0 ] = store.get( track, detectionRow, c );
+
+			for ( int j = 0; j < m; j++ )
+				ScalarStateKernels.logIntegralDiff( localizationError, tables, obs, 0, workspace.ids[ j ] & tables.stateMask,
+						workspace.Km, workspace.Ks, workspace.LP, j );
+
+			if ( doFrame && currentStep < nbLocs - 1 )
+			{
+				while ( nbCols >= frameLen )
+				{
+					if ( computePred )
+					{
+						integrateDetection( workspace, m, workspace.LPPred );
+						conditionalProbabilities( workspace.LPPred, workspace.ids, m, nbCols - 1, workspace.pred, nbSubLocs - ( removeStep + 1 ) );
+					}
+
+					m = fuse( workspace, m, nbCols );
+					nbCols -= 1;
+					removeStep += 1;
+				}
+			}
+
+			currentStep++;
+		}
+
+		/*
+		 * Add the log of the probability of the first detection and of the
+		 * probability to be in the first state.
+		 */
+
+		for ( int c = 0; c < nDims; c++ )
+			obs[ c ][ 0 ] = store.get( track, 0, c );
+		integrateDetection( workspace, m, workspace.LP );
+		workspace.discardedMass = 1. - keptMass;
+		return m;
+	}
+
+	/**
+	 * Returns the number of sub-steps in the final state sequences.
+	 */
+	private int nbCols( final int nbLocs )
+	{
+		int nbCols = nbSubSteps + 1;
+		for ( int currentStep = 2; currentStep <= nbLocs - 1; currentStep++ )
+		{
+			nbCols += nbSubSteps;
+			if ( doFrame && currentStep < nbLocs - 1 )
+				nbCols = Math.min( nbCols, frameLen - 1 );
+		}
+		return nbCols;
+	}
+
+	/**
+	 * Writes in <code>out</code> the log-probabilities plus the log of the
+	 * probability of the current detection and of the most recent state.
+	 */
+	private void integrateDetection( final TrackStateWorkspace workspace, final int m, final double[] out )
+	{
+		final double[][] obs = workspace.obs;
+		for ( int j = 0; j < m; j++ )
+			out[ j ] = workspace.LP[ j ]
+					+ ScalarStateKernels.logIntegratedTerm( localizationError, obs, 0, workspace.Km, workspace.Ks[ j ], j )
+					+ tables.logF( workspace.ids[ j ] );
+	}
+
+	/**
+	 * Drops the state sequences below the cutoff or outside the beam,
+	 * compacting the others in place, in order. Stores the fraction of the
+	 * probability mass dropped in the workspace.
+	 *
+	 * @return the number of sequences kept.
+	 */
+	private int prune( final TrackStateWorkspace workspace, final int m )
+	{
+		final double[] LP = workspace.LP;
+		double maxLP = Double.NEGATIVE_INFINITY;
+		for ( int j = 0; j < m; j++ )
+			maxLP = Math.max( maxLP, LP[ j ] );
+
+		double threshold = maxLP - logCutoff;
+		if ( beamWidth > 0 && m > beamWidth )
+		{
+			// The beamWidth-th largest value, using LPPred as scratch.
+			final double[] sorted = workspace.LPPred;
+			System.arraycopy( LP, 0, sorted, 0, m );
+			Arrays.sort( sorted, 0, m );
+			threshold = Math.max( threshold, sorted[ m - beamWidth ] );
+		}
+		if ( threshold == Double.NEGATIVE_INFINITY || Double.isNaN( threshold ) )
+			return m;
+
+		final double[][] Km = workspace.Km;
+		final double[] Ks = workspace.Ks;
+		final int[] ids = workspace.ids;
+		double sumP = 0.;
+		double sumPDropped = 0.;
+		int k = 0;
+		for ( int j = 0; j < m; j++ )
+		{
+			final double p = Math.exp( LP[ j ] - maxLP );
+			sumP += p;
+			if ( LP[ j ] >= threshold && ( beamWidth == 0 || k < beamWidth ) )
+			{
+				for ( int c = 0; c < Km.length; c++ )
+					Km[ c ][ k ] = Km[ c ][ j ];
+				Ks[ k ] = Ks[ j ];
+				LP[ k ] = LP[ j ];
+				ids[ k ] = ids[ j ];
+				k++;
+			}
+			else
+			{
+				sumPDropped += p;
+			}
+		}
+		workspace.discardedMass = sumPDropped / sumP;
+		return k;
+	}
+
+	/**
+	 * Extends each of the <code>m</code> sequences with all the possible
+	 * states of the next sub-steps, in place.
+	 *
+	 * @return the new number of sequences.
+	 */
+	private int repeat( final TrackStateWorkspace workspace, final int m, final int fanOut )
+	{
+		final double[][] Km = workspace.Km;
+		final double[] Ks = workspace.Ks;
+		final double[] LP = workspace.LP;
+		final int[] ids = workspace.ids;
+		for ( int j = m - 1; j >= 0; j-- )
+		{
+			final int id = ids[ j ] << nbSubSteps;
+			final int nj = fanOut * j;
+			for ( int inc = 0; inc < fanOut; inc++ )
+			{
+				for ( int c = 0; c < Km.length; c++ )
+					Km[ c ][ nj + inc ] = Km[ c ][ j ];
+				Ks[ nj + inc ] = Ks[ j ];
+				LP[ nj + inc ] = LP[ j ];
+				ids[ nj + inc ] = id | inc;
+			}
+		}
+		return m * fanOut;
+	}
+
+	/**
+	 * Fuses the sequences that only differ by their oldest state, the bit
+	 * <code>nbCols - 1</code> of their id. Sequences are matched with a
+	 * lookup table on the other bits, so their order does not matter. Each
+	 * fused sequence takes the place of the first of the pair, which compacts
+	 * the output in place; a sequence whose partner was pruned is kept alone.
+	 *
+	 * @return the new number of sequences.
+	 */
+	private static int fuse( final TrackStateWorkspace workspace, final int m, final int nbCols )
+	{
+		final int half = 1 << ( nbCols - 1 );
+		if ( workspace.slots.length < half )
+			workspace.slots = new int[ half ];
+		final int[] slots = workspace.slots;
+		Arrays.fill( slots, 0, half, -1 );
+
+		final double[][] Km = workspace.Km;
+		final double[] Ks = workspace.Ks;
+		final double[] LP = workspace.LP;
+		final int[] ids = workspace.ids;
+		int k = 0;
+		for ( int j = 0; j < m; j++ )
+		{
+			final int key = ids[ j ] & ( half - 1 );
+			final int slot = slots[ key ];
+			if ( slot < 0 )
+			{
+				slots[ key ] = k;
+				for ( int c = 0; c < Km.length; c++ )
+					Km[ c ][ k ] = Km[ c ][ j ];
+				Ks[ k ] = Ks[ j ];
+				LP[ k ] = LP[ j ];
+				ids[ k ] = key;
+				k++;
+			}
+			else
+			{
+				ScalarStateKernels.fuse( Km, Ks, LP, slot, j, slot );
+			}
+		}
+		return k;
+	}
+
+	/**
+	 * Writes in the specified row of <code>pred</code> the probabilities of
+	 * the state at the specified bit of the sequence ids.
+	 */
+	private static void conditionalProbabilities(
+			final double[] LP,
+			final int[] ids,
+			final int m,
+			final int stateBit,
+			final double[] pred,
+			final int rowPred )
+	{
+		double maxLP = Double.NEGATIVE_INFINITY;
+		for ( int j = 0; j < m; j++ )
+			maxLP = Math.max( maxLP, LP[ j ] );
+
+		double conditionalSumP0 = 0.;
+		double conditionalSumP1 = 0.;
+		for ( int j = 0; j < m; j++ )
+		{
+			final double p = Math.exp( LP[ j ] - maxLP );
+			if ( ( ( ids[ j ] >> stateBit ) & 1 ) == 0 )
+				conditionalSumP0 += p;
+			else
+				conditionalSumP1 += p;
+		}
+		final double sumP = conditionalSumP0 + conditionalSumP1;
+		pred[ 2 * rowPred ] = conditionalSumP0 / sumP;
+		pred[ 2 * rowPred + 1 ] = conditionalSumP1 / sumP;
+	}
+}
@@ -0,0 +1,192 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fr.pasteur.iah.extrack.compute;
+
+/**
+ * Plain Java implementation of {@link StateKernels}. The arithmetic is
+ * performed in the same order as in {@link TrackState}, so the likelihoods
+ * are identical.
+ */
+class ScalarStateKernels implements StateKernels
+{
+
+	/**
+	 * Why the SIMD kernels are not used, or <code>null</code>.
+	 */
+	private final String reason;
+
+	ScalarStateKernels()
+	{
+		this( null );
+	}
+
+	ScalarStateKernels( final String reason )
+	{
+		this.reason = reason;
+	}
+
+	@Override
+	public String toString()
+	{
+		return ( reason == null ) ? "scalar" : "scalar, " + reason;
+	}
+
+	@Override
+	public void logIntegralDiff(
+			final double localizationError,
+			final StateTables tables,
+			final double[][] obs,
+			final int n,
+			final double[][] Km,
+			final double[] Ks,
+			final double[] LP,
+			final int from,
+			final int to )
+	{
+		final int shift = Integer.numberOfTrailingZeros( n );
+		// Extracts the most recent states of the sequence within its track.
+		final int stateMask = tables.stateMask & ( n - 1 );
+		for ( int i = from; i < to; i++ )
+			logIntegralDiff( localizationError, tables, obs, i >> shift, i & stateMask, Km, Ks, LP, i );
+	}
+
+	/**
+	 * Integrates the detection of the track <code>t</code> over the diffusion
+	 * of the state sequence at index <code>i</code>, whose most recent states
+	 * are <code>pattern</code>.
+	 */
+	static void logIntegralDiff(
+			final double localizationError,
+			final StateTables tables,
+			final double[][] obs,
+			final int t,
+			final int pattern,
+			final double[][] Km,
+			final double[] Ks,
+			final double[] LP,
+			final int i )
+	{
+		final int nbDims = obs.length;
+		final double ks = Ks[ i ];
+		final double cd = tables.diffusionLengths[ pattern ];
+		final double var = localizationError * localizationError + ks * ks;
+		final double ksOut = Math.sqrt(
+				( cd * cd * localizationError * localizationError
+						+ cd * cd * ks * ks
+						+ localizationError * localizationError * ks * ks )
+						/ var );
+
+		double sumKm = 0.;
+		for ( int c = 0; c < nbDims; c++ )
+		{
+			final double cc = obs[ c ][ t ];
+			final double km = Km[ c ][ i ];
+			final double kmOut = ( km * localizationError * localizationError + cc * ks * ks ) / var;
+			sumKm += ( kmOut * kmOut / ( 2 * ksOut * ksOut )
+					- ( km * km * localizationError * localizationError + ks * ks * cc * cc + ( km - cc ) * ( km - cc ) * cd * cd )
+							/ ( 2 * ksOut * ksOut * var ) );
+			Km[ c ][ i ] = kmOut;
+		}
+		final double LC = sumKm + nbDims * Math.log( 1. / ( Math.sqrt( 2 * Math.PI * var ) ) );
+
+		Ks[ i ] = ksOut;
+		LP[ i ] = LP[ i ] + tables.logTransitions[ pattern ] + LC;
+	}
+
+	@Override
+	public void logIntegratedTerms(
+			final double localizationError,
+			final StateTables tables,
+			final double[][] obs,
+			final int n,
+			final double[][] Km,
+			final double[] Ks,
+			final double[] LP,
+			final double[] out,
+			final int from,
+			final int to )
+	{
+		final int shift = Integer.numberOfTrailingZeros( n );
+		for ( int i = from; i < to; i++ )
+			out[ i ] = LP[ i ] + logIntegratedTerm( localizationError, obs, i >> shift, Km, Ks[ i ], i ) + tables.logF( i );
+	}
+
+	/**
+	 * Returns the log of the probability of the detection of the track
+	 * <code>t</code> given the state sequence at index <code>i</code>.
+	 */
+	static double logIntegratedTerm(
+			final double localizationError,
+			final double[][] obs,
+			final int t,
+			final double[][] Km,
+			final double KsLoop,
+			final int i )
+	{
+		final double ks = Math.sqrt( KsLoop * KsLoop + localizationError * localizationError );
+		double sumC = 0.;
+		for ( int c = 0; c < obs.length; c++ )
+		{
+			final double dx = ( obs[ c ][ t ] - Km[ c ][ i ] );
+			sumC += dx * dx;
+		}
+		return -Math.log( 2. * Math.PI * ks * ks ) - sumC / ( 2. * ks * ks );
+	}
+
+	@Override
+	public void fuseTracks( final double[][] Km, final double[] Ks, final double[] LP, final int currNbBs, final int from, final int to )
+	{
+		final int i = currNbBs / 2;
+		final int shift = Integer.numberOfTrailingZeros( i );
+		for ( int dst = from; dst < to; dst++ )
+		{
+			// dst = t * i + r, src = t * currNbBs + r.
+			final int src = dst + ( dst >> shift ) * i;
+			fuse( Km, Ks, LP, src, src + i, dst );
+		}
+	}
+
+	/**
+	 * Fuses the sequences at <code>src0</code> and <code>src1</code>, that
+	 * only differ by their oldest state, and writes the result at
+	 * <code>dst</code>.
+	 */
+	static void fuse( final double[][] Km, final double[] Ks, final double[] LP, final int src0, final int src1, final int dst )
+	{
+		final double lp0 = LP[ src0 ];
+		final double lp1 = LP[ src1 ];
+		final double maxLP = Math.max( lp0, lp1 );
+		final double P0 = Math.exp( lp0 - maxLP );
+		final double P1 = Math.exp( lp1 - maxLP );
+		final double SP = P0 + P1;
+		final double A0 = P0 / SP;
+		final double A1 = P1 / SP;
+
+		for ( int c = 0; c < Km.length; c++ )
+			Km[ c ][ dst ] = A0 * Km[ c ][ src0 ] + A1 * Km[ c ][ src1 ];
+
+		final double ks0 = Ks[ src0 ];
+		final double ks1 = Ks[ src1 ];
+		Ks[ dst ] = Math.sqrt( A0 * ks0 * ks0 + A1 * ks1 * ks1 );
+		LP[ dst ] = maxLP + Math.log( SP );
+	}
+}
@@ -0,0 +1,131 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fr.pasteur.iah.extrack.compute;
+
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * The per-state arithmetic of the forward recursion of
+ * {@link FlatTrackState}.
+ * <p>
+ * Each method is a loop over a range <code>[from, to)</code> of the state
+ * sequences of a batch of tracks, laid out as in {@link FlatTrackState}:
+ * <code>n</code> sequences per track, one track after the other. There is no
+ * dependency between iterations, so implementations are free to process
+ * several sequences at once, and disjoint ranges can be processed
+ * concurrently. Range bounds are multiples of 64 or the end of the batch.
+ * <p>
+ * The implementation is selected once with {@link #select()}.
+ * {@link ScalarStateKernels} is always available. When running on Java 17 or
+ * later with the <code>jdk.incubator.vector</code> module added, a SIMD
+ * implementation shipped in the multi-release layer of the JAR is used
+ * instead. It returns the same likelihoods up to rounding errors. Setting the
+ * system property <code>extrack.kernels</code> to <code>scalar</code> forces
+ * the scalar implementation.
+ * <p>
+ * Fiji does not add incubating modules to its JVM, so the SIMD kernels are
+ * only used after adding <code>--add-modules jdk.incubator.vector</code> to
+ * its JVM options. The <code>toString()</code> of the implementations
+ * describes the selection, and is reported by
+ * {@link FlatTrackState#getKernelsDescription()}.
+ */
+interface StateKernels
+{
+
+	/**
+	 * Integrates the current detection of each track over the diffusion of
+	 * each of its state sequences, updating the mean positions, standard
+	 * deviations and log-probabilities in place.
+	 */
+	void logIntegralDiff(
+			double localizationError,
+			StateTables tables,
+			double[][] obs,
+			int n,
+			double[][] Km,
+			double[] Ks,
+			double[] LP,
+			int from,
+			int to );
+
+	/**
+	 * Writes in <code>out</code> the log-probabilities <code>LP</code> plus
+	 * the log of the probability of the current detection of each track and
+	 * the log of the fraction of the most recent state. <code>out</code> may
+	 * be <code>LP</code>.
+	 */
+	void logIntegratedTerms(
+			double localizationError,
+			StateTables tables,
+			double[][] obs,
+			int n,
+			double[][] Km,
+			double[] Ks,
+			double[] LP,
+			double[] out,
+			int from,
+			int to );
+
+	/**
+	 * Fuses, for each track, the sequences that only differ by their oldest
+	 * state. The <code>currNbBs / 2</code> fused sequences of the track
+	 * <code>t</code> are compacted in place at index
+	 * <code>t * currNbBs / 2</code>. The range is over the fused sequences.
+	 * Because of the compaction, a range can only be processed concurrently
+	 * with another one for a batch of one track.
+	 */
+	void fuseTracks( double[][] Km, double[] Ks, double[] LP, int currNbBs, int from, int to );
+
+	/**
+	 * Returns the fastest implementation available on this JVM.
+	 *
+	 * @return the kernels to use.
+	 */
+	static StateKernels select()
+	{
+		if ( "scalar".equalsIgnoreCase( System.getProperty( "extrack.kernels" ) ) )
+			return new ScalarStateKernels( "forced by the extrack.kernels property" );
+		try
+		{
+			// Only present in the Java 17 layer of the multi-release JAR.
+			final Class< ? > klass = Class.forName( "fr.pasteur.iah.extrack.compute.VectorStateKernels" );
+			return ( StateKernels ) klass.getDeclaredConstructor().newInstance();
+		}
+		catch ( final ClassNotFoundException e )
+		{
+			return new ScalarStateKernels( "SIMD kernels require Java 17 or later" );
+		}
+		catch ( final LinkageError e )
+		{
+			// The class refers to the vector module, which is not resolved.
+			return new ScalarStateKernels( "start the JVM with --add-modules jdk.incubator.vector for the SIMD kernels" );
+		}
+		catch ( final InvocationTargetException e )
+		{
+			return new ScalarStateKernels( e.getCause().getMessage() );
+		}
+		catch ( final ReflectiveOperationException e )
+		{
+			return new ScalarStateKernels( e.getMessage() );
+		}
+	}
+}
@@ -0,0 +1,286 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fr.pasteur.iah.extrack.compute;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The state-sequence tables used by the forward recursion.
+ * <p>
+ * In {@link TrackState}, the diffusion length matrix, the log-transition
+ * matrix and the log of the state fractions are rebuilt for every track and
+ * at every step. They only depend on the motility parameters and on the
+ * states of the last <code>nbSubSteps + 1</code> sub-steps of a sequence,
+ * which are the lowest bits of the sequence index. They are therefore stored
+ * once here, indexed by these bits, and shared read-only by all the tracks
+ * and all the threads of an evaluation.
+ * <p>
+ * Instances are immutable. They are obtained with
+ * {@link #get(double, double, double, double, int)}, which keeps the most
+ * recently used tables in a small bounded cache.
+ */
+public class StateTables
+{
+
+	private static final int CACHE_SIZE = 16;
+
+	private static final Map< ParameterKey, StateTables > CACHE = new LinkedHashMap< ParameterKey, StateTables >( CACHE_SIZE, 0.75f, true )
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry( final Map.Entry< ParameterKey, StateTables > eldest )
+		{
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	final int nbSubSteps;
+
+	/**
+	 * Mask that extracts the <code>nbSubSteps + 1</code> most recent states
+	 * from a sequence index.
+	 */
+	final int stateMask;
+
+	/**
+	 * Diffusion length for each pattern of <code>nbSubSteps + 1</code>
+	 * states.
+	 */
+	final double[] diffusionLengths;
+
+	/**
+	 * Sum of the log of transition probabilities for each pattern of
+	 * <code>nbSubSteps + 1</code> states.
+	 */
+	final double[] logTransitions;
+
+	final double logF0;
+
+	final double logF1;
+
+	/**
+	 * Derivatives of the diffusion lengths with respect to the diffusion
+	 * length of the first and of the second state.
+	 */
+	final double[] dDiffusionLengths0;
+
+	final double[] dDiffusionLengths1;
+
+	/**
+	 * Derivatives of the log-transitions with respect to F0 and to the
+	 * continuous probability of unbinding.
+	 */
+	final double[] dLogTransitionsF0;
+
+	final double[] dLogTransitionsPU;
+
+	/**
+	 * Derivatives of the log of the state fractions with respect to F0.
+	 */
+	final double dLogF0;
+
+	final double dLogF1;
+
+	private StateTables(
+			final double diffusionLength0,
+			final double diffusionLength1,
+			final double F0,
+			final double probabilityOfUnbindingContinuous,
+			final int nbSubSteps )
+	{
+		this.nbSubSteps = nbSubSteps;
+		final double F1 = 1. - F0;
+
+		// Compute probabilityOfBindingContinuous.
+		final double probabilityOfBindingContinuous = F0 / F1 * probabilityOfUnbindingContinuous;
+
+		// Correct input probabilities from continuous to discrete.
+		final double probabilityOfUnbinding = 1. - Math.exp( -probabilityOfUnbindingContinuous / nbSubSteps );
+		final double probabilityOfBinding = 1. - Math.exp( -probabilityOfBindingContinuous / nbSubSteps );
+
+		final int nPatterns = 1 << ( nbSubSteps + 1 );
+		this.stateMask = nPatterns - 1;
+		this.diffusionLengths = new double[ nPatterns ];
+		this.logTransitions = new double[ nPatterns ];
+		final double[][] TrMat = new double[][] {
+				{ 1. - probabilityOfUnbinding, probabilityOfUnbinding },
+				{ probabilityOfBinding, 1. - probabilityOfBinding } };
+		for ( int r = 0; r < nPatterns; r++ )
+		{
+			diffusionLengths[ r ] = diffusionLength( r, nbSubSteps, diffusionLength0, diffusionLength1 );
+			logTransitions[ r ] = logTransition( r, nbSubSteps, TrMat );
+		}
+		this.logF0 = Math.log( F0 );
+		this.logF1 = Math.log( F1 );
+
+		/*
+		 * Derivatives.
+		 */
+
+		// d(probabilityOfUnbinding) / d(probabilityOfUnbindingContinuous).
+		final double dPUdPUc = Math.exp( -probabilityOfUnbindingContinuous / nbSubSteps ) / nbSubSteps;
+		// d(probabilityOfBinding) / d(probabilityOfBindingContinuous).
+		final double dPBdPBc = Math.exp( -probabilityOfBindingContinuous / nbSubSteps ) / nbSubSteps;
+		final double dPBdF0 = dPBdPBc * probabilityOfUnbindingContinuous / ( F1 * F1 );
+		final double dPBdPUc = dPBdPBc * F0 / F1;
+		// Derivatives of the log of TrMat elements.
+		final double[][] dLogTrMatF0 = new double[][] {
+				{ 0., 0. },
+				{ dPBdF0 / probabilityOfBinding, -dPBdF0 / ( 1. - probabilityOfBinding ) } };
+		final double[][] dLogTrMatPU = new double[][] {
+				{ -dPUdPUc / ( 1. - probabilityOfUnbinding ), dPUdPUc / probabilityOfUnbinding },
+				{ dPBdPUc / probabilityOfBinding, -dPBdPUc / ( 1. - probabilityOfBinding ) } };
+
+		this.dDiffusionLengths0 = new double[ nPatterns ];
+		this.dDiffusionLengths1 = new double[ nPatterns ];
+		this.dLogTransitionsF0 = new double[ nPatterns ];
+		this.dLogTransitionsPU = new double[ nPatterns ];
+		for ( int r = 0; r < nPatterns; r++ )
+		{
+			/*
+			 * The square of the diffusion length is the mean of (val1^2 +
+			 * val2^2) / 2 over the sub-steps, so its derivative with respect
+			 * to a diffusion length d is d times the number of times it
+			 * appears, over nbSubSteps.
+			 */
+			int count0 = 0;
+			for ( int c = 0; c < nbSubSteps; c++ )
+			{
+				count0 += ( ( r >> c ) & 1 ) == 0 ? 1 : 0;
+				count0 += ( ( r >> ( c + 1 ) ) & 1 ) == 0 ? 1 : 0;
+			}
+			final int count1 = 2 * nbSubSteps - count0;
+			final double cd = diffusionLengths[ r ];
+			dDiffusionLengths0[ r ] = count0 * diffusionLength0 / ( 2. * nbSubSteps * cd );
+			dDiffusionLengths1[ r ] = count1 * diffusionLength1 / ( 2. * nbSubSteps * cd );
+			dLogTransitionsF0[ r ] = dLogTransition( r, nbSubSteps, dLogTrMatF0 );
+			dLogTransitionsPU[ r ] = dLogTransition( r, nbSubSteps, dLogTrMatPU );
+		}
+		this.dLogF0 = 1. / F0;
+		this.dLogF1 = -1. / F1;
+	}
+
+	/**
+	 * Returns the tables for the specified parameters, building them if they
+	 * are not in the cache.
+	 *
+	 * @param diffusionLength0
+	 *            the diffusion length of the first state.
+	 * @param diffusionLength1
+	 *            the diffusion length of the second state.
+	 * @param F0
+	 *            the fraction of the first state.
+	 * @param probabilityOfUnbindingContinuous
+	 *            the continuous probability of unbinding.
+	 * @param nbSubSteps
+	 *            the number of sub-steps.
+	 * @return the tables.
+	 */
+	public static StateTables get(
+			final double diffusionLength0,
+			final double diffusionLength1,
+			final double F0,
+			final double probabilityOfUnbindingContinuous,
+			final int nbSubSteps )
+	{
+		final ParameterKey key = new ParameterKey( new double[] {
+				diffusionLength0,
+				diffusionLength1,
+				F0,
+				probabilityOfUnbindingContinuous }, nbSubSteps );
+		synchronized ( CACHE )
+		{
+			StateTables tables = CACHE.get( key );
+			if ( tables == null )
+			{
+				tables = new StateTables( diffusionLength0, diffusionLength1, F0, probabilityOfUnbindingContinuous, nbSubSteps );
+				CACHE.put( key, tables );
+			}
+			return tables;
+		}
+	}
+
+	/**
+	 * Returns the log of the fraction of the state of the most recent
+	 * sub-step of the specified sequence.
+	 */
+	final double logF( final int r )
+	{
+		return ( ( r & 1 ) == 0 ) ? logF0 : logF1;
+	}
+
+	private static double diffusionLength(
+			final int states,
+			final int nbSubSteps,
+			final double diffusionLength0,
+			final double diffusionLength1 )
+	{
+		double sumSq = 0.;
+		for ( int c = 0; c < nbSubSteps; c++ )
+		{
+			final double val1 = ( ( states >> c ) & 1 ) == 0 ? diffusionLength0 : diffusionLength1;
+			final double val2 = ( ( states >> ( c + 1 ) ) & 1 ) == 0 ? diffusionLength0 : diffusionLength1;
+			final double val = Math.sqrt( ( val1 * val1 + val2 * val2 ) / 2. );
+			sumSq += val * val;
+		}
+		return Math.sqrt( sumSq / nbSubSteps );
+	}
+
+	private static double logTransition( final int states, final int nbSubSteps, final double[][] TrMat )
+	{
+		double sum = 0.;
+		for ( int c = 0; c < nbSubSteps; c++ )
+		{
+			final int val1 = ( states >> c ) & 1;
+			final int val2 = ( states >> ( c + 1 ) ) & 1;
+			sum += Math.log( TrMat[ val1 ][ val2 ] );
+		}
+		return sum;
+	}
+
+	/**
+	 * Sums the specified derivatives of the log of the transition matrix
+	 * elements over the transitions of a pattern.
+	 */
+	private static double dLogTransition( final int states, final int nbSubSteps, final double[][] dLogTrMat )
+	{
+		double sum = 0.;
+		for ( int c = 0; c < nbSubSteps; c++ )
+		{
+			final int val1 = ( states >> c ) & 1;
+			final int val2 = ( states >> ( c + 1 ) ) & 1;
+			sum += dLogTrMat[ val1 ][ val2 ];
+		}
+		return sum;
+	}
+
+	/**
+	 * Returns the derivative of the log of the fraction of the state of the
+	 * most recent sub-step of the specified sequence with respect to F0.
+	 */
+	final double dLogF( final int r )
+	{
+		return ( ( r & 1 ) == 0 ) ? dLogF0 : dLogF1;
+	}
+}
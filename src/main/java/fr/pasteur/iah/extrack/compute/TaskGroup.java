@@ -0,0 +1,163 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fr.pasteur.iah.extrack.compute;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A fixed number of tasks submitted to an executor and awaited together.
+ * <p>
+ * The first exception thrown by a task is recorded, and rethrown by the
+ * thread that waits for the group once all the tasks are done. The results
+ * of a group that failed or whose wait was interrupted must be discarded:
+ * some of its tasks did not complete.
+ */
+final class TaskGroup
+{
+
+	private final Executor executor;
+
+	private final CountDownLatch latch;
+
+	private final AtomicReference< Throwable > failure = new AtomicReference<>();
+
+	/**
+	 * Creates a group of tasks.
+	 *
+	 * @param executor
+	 *            the executor to run the tasks on.
+	 * @param nTasks
+	 *            the number of tasks that will be submitted.
+	 */
+	TaskGroup( final Executor executor, final int nTasks )
+	{
+		this.executor = executor;
+		this.latch = new CountDownLatch( nTasks );
+	}
+
+	/**
+	 * Submits one of the tasks of the group.
+	 *
+	 * @param task
+	 *            the task.
+	 */
+	void submit( final Runnable task )
+	{
+		executor.execute( () -> {
+			try
+			{
+				task.run();
+			}
+			catch ( final Throwable e )
+			{
+				failure.compareAndSet( null, e );
+			}
+			finally
+			{
+				latch.countDown();
+			}
+		} );
+	}
+
+	/**
+	 * Waits for all the tasks of the group to complete. When called from a
+	 * thread of a {@link ForkJoinPool}, for instance by a task that evaluates
+	 * a likelihood function on the pool it runs on, the pool is told that the
+	 * thread blocks, so that it can start another thread to run the tasks of
+	 * the group.
+	 *
+	 * @throws CompletionException
+	 *             if a task failed, with the exception of the first task
+	 *             that failed as cause, or if the wait was interrupted. In the
+	 *             latter case, the interrupt status of the thread is set
+	 *             again.
+	 */
+	void join()
+	{
+		try
+		{
+			ForkJoinPool.managedBlock( new ForkJoinPool.ManagedBlocker()
+			{
+				@Override
+				public boolean block() throws InterruptedException
+				{
+					latch.await();
+					return true;
+				}
+
+				@Override
+				public boolean isReleasable()
+				{
+					return latch.getCount() == 0;
+				}
+			} );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new CompletionException( "Interrupted while waiting for the computation tasks.", e );
+		}
+		checkFailure();
+	}
+
+	/**
+	 * Waits at most the specified time for all the tasks of the group to
+	 * complete.
+	 *
+	 * @param timeout
+	 *            the maximal time to wait.
+	 * @param unit
+	 *            the unit of the time.
+	 * @return <code>true</code> if all the tasks completed,
+	 *         <code>false</code> if the time elapsed before.
+	 * @throws CompletionException
+	 *             if a task failed or if the wait was interrupted, see
+	 *             {@link #join()}.
+	 */
+	boolean join( final long timeout, final TimeUnit unit )
+	{
+		try
+		{
+			if ( !latch.await( timeout, unit ) )
+				return false;
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new CompletionException( "Interrupted while waiting for the computation tasks.", e );
+		}
+		checkFailure();
+		return true;
+	}
+
+	private void checkFailure()
+	{
+		final Throwable e = failure.get();
+		if ( e != null )
+			throw new CompletionException( "A computation task failed: " + e, e );
+	}
+}
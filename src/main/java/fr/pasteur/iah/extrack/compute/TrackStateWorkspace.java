@@ -0,0 +1,213 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fr.pasteur.iah.extrack.compute;
+
+import java.util.Arrays;
+
+/**
+ * Scratch buffers for the evaluation of a track by {@link FlatTrackState}.
+ * <p>
+ * A workspace is meant to be allocated once, sized for the largest number of
+ * state sequences and the longest track of a dataset, and then reused for
+ * every track and every evaluation. Buffers are grown if a larger track comes
+ * by. A workspace is not thread-safe: each thread must own its own.
+ * <p>
+ * When several tracks are evaluated together, the state sequences of all the
+ * tracks of the batch are stored one track after the other in the same
+ * buffers.
+ */
+public class TrackStateWorkspace
+{
+
+	/**
+	 * Mean positions, one plane per dimension.
+	 */
+	double[][] Km;
+
+	/**
+	 * Standard deviations of the positions.
+	 */
+	double[] Ks;
+
+	/**
+	 * Log-probabilities of the state sequences.
+	 */
+	double[] LP;
+
+	/**
+	 * Log-probabilities of the state sequences including the current
+	 * detection, used for the predictions.
+	 */
+	double[] LPPred;
+
+	/**
+	 * State predictions, two values per sub-localization.
+	 */
+	double[] pred;
+
+	/**
+	 * Current detection of each track of the batch, one plane per dimension.
+	 */
+	double[][] obs;
+
+	/**
+	 * State sequence of each entry, used by {@link PrunedTrackState} where
+	 * the sequences are not stored at the index they encode.
+	 */
+	int[] ids = new int[ 0 ];
+
+	/**
+	 * Lookup table from fused sequence to entry, used by
+	 * {@link PrunedTrackState}.
+	 */
+	int[] slots = new int[ 0 ];
+
+	/**
+	 * Fraction of the probability mass of the last track discarded by
+	 * {@link PrunedTrackState}.
+	 */
+	double discardedMass;
+
+	/**
+	 * Derivatives of the mean positions, standard deviations and
+	 * log-probabilities with respect to each parameter, used by
+	 * {@link TrackStateGradient}. Indexed by dimension (for the mean
+	 * positions), then parameter, then state sequence. Allocated on first
+	 * use.
+	 */
+	double[][][] dKm;
+
+	double[][] dKs;
+
+	double[][] dLP;
+
+	/**
+	 * Creates a new workspace.
+	 *
+	 * @param nDims
+	 *            the number of spatial dimensions of the tracks.
+	 * @param maxNbStates
+	 *            the largest number of state sequences held at once, as
+	 *            returned by {@link FlatTrackState#maxNbStates(int)}.
+	 * @param maxNbSubLocs
+	 *            the largest number of sub-localizations, that is
+	 *            <code>(nbLocs - 1) * nbSubSteps + 1</code> for the longest
+	 *            track. Only used for predictions.
+	 */
+	public TrackStateWorkspace( final int nDims, final int maxNbStates, final int maxNbSubLocs )
+	{
+		this( nDims, maxNbStates, maxNbSubLocs, 1 );
+	}
+
+	/**
+	 * Creates a new workspace for batches of tracks.
+	 *
+	 * @param nDims
+	 *            the number of spatial dimensions of the tracks.
+	 * @param maxNbStates
+	 *            the largest total number of state sequences held at once,
+	 *            that is the number of state sequences of one track times
+	 *            the number of tracks in a batch.
+	 * @param maxNbSubLocs
+	 *            the largest number of sub-localizations, that is
+	 *            <code>(nbLocs - 1) * nbSubSteps + 1</code> for the longest
+	 *            track. Only used for predictions.
+	 * @param maxNbTracks
+	 *            the largest number of tracks in a batch.
+	 */
+	public TrackStateWorkspace( final int nDims, final int maxNbStates, final int maxNbSubLocs, final int maxNbTracks )
+	{
+		this.Km = new double[ nDims ][ maxNbStates ];
+		this.Ks = new double[ maxNbStates ];
+		this.LP = new double[ maxNbStates ];
+		this.LPPred = new double[ maxNbStates ];
+		this.pred = new double[ 2 * maxNbSubLocs ];
+		this.obs = new double[ nDims ][ maxNbTracks ];
+	}
+
+	/**
+	 * Makes sure the buffers can hold the specified sizes, reallocating them
+	 * if needed.
+	 */
+	void ensureCapacity( final int nDims, final int nbStates, final int nbSubLocs, final int nbTracks )
+	{
+		if ( Km.length != nDims || Ks.length < nbStates )
+		{
+			final int capacity = Math.max( nbStates, Ks.length );
+			Km = new double[ nDims ][ capacity ];
+			Ks = new double[ capacity ];
+			LP = new double[ capacity ];
+			LPPred = new double[ capacity ];
+		}
+		if ( obs.length != nDims || obs[ 0 ].length < nbTracks )
+			obs = new double[ nDims ][ Math.max( nbTracks, obs.length == 0 ? 0 : obs[ 0 ].length ) ];
+		if ( pred.length < 2 * nbSubLocs )
+			pred = new double[ 2 * nbSubLocs ];
+	}
+
+	/**
+	 * Makes sure the derivative buffers can hold the specified sizes,
+	 * reallocating them if needed.
+	 */
+	void ensureGradientCapacity( final int nDims, final int nParams, final int nbStates )
+	{
+		if ( dKs != null && dKm.length == nDims && dKs.length == nParams && dKs[ 0 ].length >= nbStates )
+			return;
+
+		final int capacity = Math.max( nbStates, dKs == null ? 0 : dKs[ 0 ].length );
+		dKm = new double[ nDims ][ nParams ][ capacity ];
+		dKs = new double[ nParams ][ capacity ];
+		dLP = new double[ nParams ][ capacity ];
+	}
+
+	/**
+	 * Makes sure the state buffers and the sequence ids can hold the
+	 * specified number of state sequences, keeping their content.
+	 */
+	void growStates( final int nbStates )
+	{
+		if ( ids.length < Ks.length )
+			ids = new int[ Ks.length ];
+		if ( Ks.length >= nbStates )
+			return;
+
+		final int capacity = Math.max( nbStates, 2 * Ks.length );
+		for ( int c = 0; c < Km.length; c++ )
+			Km[ c ] = Arrays.copyOf( Km[ c ], capacity );
+		Ks = Arrays.copyOf( Ks, capacity );
+		LP = Arrays.copyOf( LP, capacity );
+		LPPred = new double[ capacity ];
+		ids = Arrays.copyOf( ids, capacity );
+	}
+
+	/**
+	 * Returns the fraction of the probability mass of the last track
+	 * evaluated with this workspace that was discarded by the pruning of
+	 * {@link PrunedTrackState}. It is 0 for the other evaluations.
+	 *
+	 * @return the discarded fraction, between 0 and 1.
+	 */
+	public double getDiscardedMass()
+	{
+		return discardedMass;
+	}
+}
@@ -0,0 +1,360 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fr.pasteur.iah.extrack.compute;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import Jama.Matrix;
+
+/**
+ * Immutable, packed storage of a collection of tracks.
+ * <p>
+ * The coordinates of all the localizations are stored in one array, track
+ * after track and localization after localization, so the <code>c</code>-th
+ * coordinate of the localization <code>r</code> of the track <code>t</code>
+ * is at <code>(offset(t) + r) * nDims() + c</code>. An offsets array gives
+ * where each track starts, and a track-ID array the ID of each track. This
+ * takes a fraction of the memory of one {@link Matrix} per track, which
+ * stores each row as a separate array.
+ * <p>
+ * Tracks are designated by their index in the store, from 0 to
+ * {@link #size()} excluded. Instances are built with a {@link Builder}, or
+ * converted from matrices with {@link #of(Map)}.
+ */
+public final class TrackStore
+{
+
+	private final int nDims;
+
+	private final double[] coords;
+
+	/**
+	 * Index of the first localization of each track, followed by the total
+	 * number of localizations.
+	 */
+	private final int[] offsets;
+
+	private final int[] trackIDs;
+
+	private TrackStore( final int nDims, final double[] coords, final int[] offsets, final int[] trackIDs )
+	{
+		this.nDims = nDims;
+		this.coords = coords;
+		this.offsets = offsets;
+		this.trackIDs = trackIDs;
+	}
+
+	/**
+	 * Returns the number of tracks.
+	 *
+	 * @return the number of tracks.
+	 */
+	public int size()
+	{
+		return trackIDs.length;
+	}
+
+	/**
+	 * Returns the number of spatial dimensions of the localizations.
+	 *
+	 * @return the number of dimensions.
+	 */
+	public int nDims()
+	{
+		return nDims;
+	}
+
+	/**
+	 * Returns the total number of localizations of all the tracks.
+	 *
+	 * @return the number of localizations.
+	 */
+	public int nLocalizations()
+	{
+		return offsets[ offsets.length - 1 ];
+	}
+
+	/**
+	 * Returns the ID of the specified track.
+	 *
+	 * @param track
+	 *            the index of the track in this store.
+	 * @return the track ID.
+	 */
+	public int getTrackID( final int track )
+	{
+		return trackIDs[ track ];
+	}
+
+	/**
+	 * Returns the number of localizations of the specified track.
+	 *
+	 * @param track
+	 *            the index of the track in this store.
+	 * @return the number of localizations.
+	 */
+	public int nbLocs( final int track )
+	{
+		return offsets[ track + 1 ] - offsets[ track ];
+	}
+
+	/**
+	 * Returns the index of the first localization of the specified track
+	 * among all the localizations of the store.
+	 *
+	 * @param track
+	 *            the index of the track in this store.
+	 * @return the index of its first localization.
+	 */
+	public int offset( final int track )
+	{
+		return offsets[ track ];
+	}
+
+	/**
+	 * Returns a coordinate of a localization.
+	 *
+	 * @param track
+	 *            the index of the track in this store.
+	 * @param row
+	 *            the index of the localization in the track.
+	 * @param dim
+	 *            the dimension.
+	 * @return the coordinate.
+	 */
+	public double get( final int track, final int row, final int dim )
+	{
+		return coords[ ( offsets[ track ] + row ) * nDims + dim ];
+	}
+
+	/**
+	 * Returns a new matrix with the localizations of the specified track, one
+	 * row per localization.
+	 *
+	 * @param track
+	 *            the index of the track in this store.
+	 * @return a new matrix.
+	 */
+	public Matrix toMatrix( final int track )
+	{
+		final int nbLocs = nbLocs( track );
+		final Matrix m = new Matrix( nbLocs, nDims );
+		for ( int r = 0; r < nbLocs; r++ )
+			for ( int c = 0; c < nDims; c++ )
+				m.set( r, c, get( track, r, c ) );
+		return m;
+	}
+
+	/**
+	 * Returns a new store with the specified tracks of this store, in the
+	 * specified order.
+	 *
+	 * @param tracks
+	 *            the indices of the tracks in this store.
+	 * @return a new store.
+	 */
+	public TrackStore subset( final int[] tracks )
+	{
+		final Builder builder = new Builder( nDims );
+		for ( final int t : tracks )
+		{
+			builder.beginTrack( trackIDs[ t ] );
+			builder.ensureCapacity( nbLocs( t ) );
+			final int from = offsets[ t ] * nDims;
+			final int to = offsets[ t + 1 ] * nDims;
+			System.arraycopy( coords, from, builder.coords, builder.nLocs * nDims, to - from );
+			builder.nLocs += nbLocs( t );
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Packs the specified tracks in a new store. The tracks are stored in the
+	 * iteration order of the map.
+	 *
+	 * @param tracks
+	 *            the tracks, one row per localization, keyed by track ID.
+	 *            They must all have the same number of columns.
+	 * @return a new store.
+	 */
+	public static TrackStore of( final Map< Integer, Matrix > tracks )
+	{
+		final int nDims = tracks.isEmpty() ? 2 : tracks.values().iterator().next().getColumnDimension();
+		final Builder builder = new Builder( nDims );
+		for ( final Map.Entry< Integer, Matrix > entry : tracks.entrySet() )
+			builder.addTrack( entry.getKey().intValue(), entry.getValue() );
+		return builder.build();
+	}
+
+	/**
+	 * Packs the specified tracks in a new store. The ID of each track is its
+	 * index.
+	 *
+	 * @param tracks
+	 *            the tracks, one row per localization. They must all have the
+	 *            same number of columns.
+	 * @return a new store.
+	 */
+	public static TrackStore of( final Matrix... tracks )
+	{
+		final int nDims = tracks.length == 0 ? 2 : tracks[ 0 ].getColumnDimension();
+		final Builder builder = new Builder( nDims );
+		for ( int t = 0; t < tracks.length; t++ )
+			builder.addTrack( t, tracks[ t ] );
+		return builder.build();
+	}
+
+	/**
+	 * Builds a {@link TrackStore} track after track. A builder is not
+	 * thread-safe.
+	 */
+	public static final class Builder
+	{
+
+		private final int nDims;
+
+		private double[] coords;
+
+		private int nLocs;
+
+		private int[] offsets;
+
+		private int[] trackIDs;
+
+		private int nTracks;
+
+		/**
+		 * Creates a builder for tracks with the specified number of
+		 * dimensions.
+		 *
+		 * @param nDims
+		 *            the number of spatial dimensions.
+		 */
+		public Builder( final int nDims )
+		{
+			this.nDims = nDims;
+			this.coords = new double[ 64 * nDims ];
+			this.offsets = new int[ 17 ];
+			this.trackIDs = new int[ 16 ];
+		}
+
+		/**
+		 * Starts a new track. The localizations added next belong to it.
+		 *
+		 * @param trackID
+		 *            the ID of the track.
+		 * @return this builder.
+		 */
+		public Builder beginTrack( final int trackID )
+		{
+			if ( nTracks == trackIDs.length )
+			{
+				trackIDs = Arrays.copyOf( trackIDs, 2 * nTracks );
+				offsets = Arrays.copyOf( offsets, 2 * nTracks + 1 );
+			}
+			trackIDs[ nTracks ] = trackID;
+			offsets[ nTracks ] = nLocs;
+			nTracks++;
+			return this;
+		}
+
+		/**
+		 * Adds a localization to the current track.
+		 *
+		 * @param position
+		 *            the coordinates of the localization. Must have
+		 *            {@link TrackStore#nDims()} elements.
+		 * @return this builder.
+		 */
+		public Builder addLocalization( final double... position )
+		{
+			ensureCapacity( 1 );
+			System.arraycopy( position, 0, coords, nLocs * nDims, nDims );
+			nLocs++;
+			return this;
+		}
+
+		/**
+		 * Adds a 2D localization to the current track.
+		 *
+		 * @param x
+		 *            the X coordinate.
+		 * @param y
+		 *            the Y coordinate.
+		 * @return this builder.
+		 */
+		public Builder addLocalization( final double x, final double y )
+		{
+			ensureCapacity( 1 );
+			coords[ nLocs * nDims ] = x;
+			coords[ nLocs * nDims + 1 ] = y;
+			nLocs++;
+			return this;
+		}
+
+		/**
+		 * Adds a track, one row per localization.
+		 *
+		 * @param trackID
+		 *            the ID of the track.
+		 * @param track
+		 *            the track.
+		 * @return this builder.
+		 */
+		public Builder addTrack( final int trackID, final Matrix track )
+		{
+			beginTrack( trackID );
+			ensureCapacity( track.getRowDimension() );
+			for ( int r = 0; r < track.getRowDimension(); r++ )
+			{
+				for ( int c = 0; c < nDims; c++ )
+					coords[ nLocs * nDims + c ] = track.get( r, c );
+				nLocs++;
+			}
+			return this;
+		}
+
+		private void ensureCapacity( final int extraLocs )
+		{
+			final int required = ( nLocs + extraLocs ) * nDims;
+			if ( required > coords.length )
+				coords = Arrays.copyOf( coords, Math.max( required, 2 * coords.length ) );
+		}
+
+		/**
+		 * Returns a new store with the tracks added so far.
+		 *
+		 * @return a new store.
+		 */
+		public TrackStore build()
+		{
+			final int[] o = Arrays.copyOf( offsets, nTracks + 1 );
+			o[ nTracks ] = nLocs;
+			return new TrackStore(
+					nDims,
+					Arrays.copyOf( coords, nLocs * nDims ),
+					o,
+					Arrays.copyOf( trackIDs, nTracks ) );
+		}
+	}
+}
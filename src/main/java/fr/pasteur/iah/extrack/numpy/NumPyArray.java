@@ -0,0 +1,456 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fr.pasteur.iah.extrack.numpy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A 1D or 2D array stored in a NumPy file, memory-mapped instead of read in
+ * the heap.
+ * <p>
+ * The NPY format versions 1, 2 and 3 are supported, with 32 and 64-bit float
+ * and integer data, in little or big-endian byte order and in C or Fortran
+ * order. A 1D array is seen as a single column.
+ * <p>
+ * The values are read from the mapped file on access, so opening a file only
+ * costs its header. When the array is in Fortran order, its columns are
+ * contiguous in the file and can be obtained as buffer views without any
+ * copy. The mapping stays valid after the file is opened, and is released
+ * when the array is garbage collected.
+ */
+public class NumPyArray
+{
+
+	/**
+	 * The types of data supported.
+	 */
+	public enum DType
+	{
+		FLOAT32( 'f', 4 ),
+		FLOAT64( 'f', 8 ),
+		INT32( 'i', 4 ),
+		INT64( 'i', 8 );
+
+		private final char kind;
+
+		private final int size;
+
+		private DType( final char kind, final int size )
+		{
+			this.kind = kind;
+			this.size = size;
+		}
+
+		/**
+		 * Returns the size of one value, in bytes.
+		 *
+		 * @return the size of one value.
+		 */
+		public int size()
+		{
+			return size;
+		}
+
+		private static DType of( final char kind, final int size ) throws IOException
+		{
+			for ( final DType type : values() )
+				if ( type.kind == kind && type.size == size )
+					return type;
+			throw new IOException( "Unsupported NumPy data type: '" + kind + size + "'." );
+		}
+	}
+
+	private static final byte[] NUMPY_MAGIC = new byte[] { ( byte ) 0x93, 'N', 'U', 'M', 'P', 'Y' };
+
+	private static final Pattern DESCR_PATTERN = Pattern.compile( "'descr'\\s*:\\s*'([<>|=])([fiu])(\\d+)'" );
+
+	private static final Pattern FORTRAN_PATTERN = Pattern.compile( "'fortran_order'\\s*:\\s*(True|False)" );
+
+	private static final Pattern SHAPE_PATTERN = Pattern.compile( "'shape'\\s*:\\s*\\(\\s*(\\d+)\\s*(?:,\\s*(\\d*)\\s*)?,?\\s*\\)" );
+
+	private final int nRows;
+
+	private final int nCols;
+
+	private final DType type;
+
+	private final ByteOrder order;
+
+	private final boolean fortranOrder;
+
+	/**
+	 * The mapped data. In Fortran order, one segment per column. In C order,
+	 * segments of <code>rowsPerSegment</code> whole rows, so that each
+	 * segment stays under the 2 GB limit of a mapping.
+	 */
+	private final ByteBuffer[] segments;
+
+	private final int rowsPerSegment;
+
+	private NumPyArray(
+			final int nRows,
+			final int nCols,
+			final DType type,
+			final ByteOrder order,
+			final boolean fortranOrder,
+			final ByteBuffer[] segments,
+			final int rowsPerSegment )
+	{
+		this.nRows = nRows;
+		this.nCols = nCols;
+		this.type = type;
+		this.order = order;
+		this.fortranOrder = fortranOrder;
+		this.segments = segments;
+		this.rowsPerSegment = rowsPerSegment;
+	}
+
+	/**
+	 * Opens and maps the specified NumPy file.
+	 *
+	 * @param filePath
+	 *            the path to the NumPy file.
+	 * @return a new array.
+	 * @throws IOException
+	 *             if the file cannot be read, is not a NumPy file, or stores
+	 *             an array that is not supported.
+	 */
+	public static NumPyArray open( final String filePath ) throws IOException
+	{
+		try (final FileChannel channel = FileChannel.open( Paths.get( filePath ), StandardOpenOption.READ ))
+		{
+			final Header header = readHeader( channel, filePath );
+			final int nRows = header.nRows;
+			final int nCols = header.nCols;
+			final DType type = header.type;
+			final ByteOrder order = header.order;
+			final boolean fortranOrder = header.fortranOrder;
+			final long dataStart = header.dataStart;
+
+			/*
+			 * Map the data.
+			 */
+
+			final ByteBuffer[] segments;
+			final int rowsPerSegment;
+			if ( fortranOrder || nCols == 1 )
+			{
+				final long columnBytes = ( long ) nRows * type.size;
+				if ( columnBytes > Integer.MAX_VALUE )
+					throw new IOException( "Columns larger than 2 GB are not supported." );
+				segments = new ByteBuffer[ nCols ];
+				for ( int c = 0; c < nCols; c++ )
+					segments[ c ] = channel.map( FileChannel.MapMode.READ_ONLY, dataStart + c * columnBytes, columnBytes ).order( order );
+				rowsPerSegment = nRows;
+			}
+			else
+			{
+				final int rowBytes = nCols * type.size;
+				rowsPerSegment = Math.max( 1, Integer.MAX_VALUE / rowBytes );
+				final int nSegments = ( int ) ( ( ( long ) nRows + rowsPerSegment - 1 ) / rowsPerSegment );
+				segments = new ByteBuffer[ nSegments ];
+				for ( int s = 0; s < nSegments; s++ )
+				{
+					final long firstRow = ( long ) s * rowsPerSegment;
+					final long nbRows = Math.min( rowsPerSegment, nRows - firstRow );
+					segments[ s ] = channel.map( FileChannel.MapMode.READ_ONLY, dataStart + firstRow * rowBytes, nbRows * rowBytes ).order( order );
+				}
+			}
+			return new NumPyArray( nRows, nCols, type, order, fortranOrder || nCols == 1, segments, rowsPerSegment );
+		}
+	}
+
+	/**
+	 * Returns whether the specified file is a NumPy file storing an array
+	 * that can be opened. Only the header of the file is read.
+	 *
+	 * @param filePath
+	 *            the path to the file.
+	 * @return <code>true</code> if the file can be opened.
+	 */
+	public static boolean isNumPy( final String filePath )
+	{
+		try (final FileChannel channel = FileChannel.open( Paths.get( filePath ), StandardOpenOption.READ ))
+		{
+			readHeader( channel, filePath );
+			return true;
+		}
+		catch ( final IOException e )
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * The description of the array read from the header of a NumPy file.
+	 */
+	private static final class Header
+	{
+
+		private int nRows;
+
+		private int nCols;
+
+		private DType type;
+
+		private ByteOrder order;
+
+		private boolean fortranOrder;
+
+		/**
+		 * Position of the first value in the file.
+		 */
+		private long dataStart;
+	}
+
+	private static Header readHeader( final FileChannel channel, final String filePath ) throws IOException
+	{
+		/*
+		 * Preamble: magic string, version, and header length on 2 bytes for
+		 * version 1 and on 4 bytes for versions 2 and 3.
+		 */
+
+		final ByteBuffer preamble = ByteBuffer.allocate( 12 ).order( ByteOrder.LITTLE_ENDIAN );
+		readFully( channel, preamble, 0 );
+		for ( int i = 0; i < NUMPY_MAGIC.length; i++ )
+			if ( preamble.get( i ) != NUMPY_MAGIC[ i ] )
+				throw new IOException( "The file " + filePath + " is not a NumPy file." );
+
+		final int majorVersion = preamble.get( 6 );
+		final long headerStart;
+		final int headerLength;
+		if ( majorVersion == 1 )
+		{
+			headerStart = 10;
+			headerLength = preamble.getShort( 8 ) & 0xffff;
+		}
+		else if ( majorVersion == 2 || majorVersion == 3 )
+		{
+			headerStart = 12;
+			headerLength = preamble.getInt( 8 );
+		}
+		else
+		{
+			throw new IOException( "Unsupported NumPy format version: " + majorVersion + "." );
+		}
+		if ( headerLength < 0 || headerStart + headerLength > channel.size() )
+			throw new IOException( "The header of the file " + filePath + " is truncated." );
+
+		final ByteBuffer headerBytes = ByteBuffer.allocate( headerLength );
+		readFully( channel, headerBytes, headerStart );
+		final String dict = new String( headerBytes.array(), ( majorVersion == 3 ) ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1 );
+
+		/*
+		 * Header dictionary.
+		 */
+
+		final Header header = new Header();
+		final Matcher descr = DESCR_PATTERN.matcher( dict );
+		if ( !descr.find() )
+			throw new IOException( "Could not find the 'descr' descriptor in the file header." );
+		switch ( descr.group( 1 ) )
+		{
+		case "<":
+			header.order = ByteOrder.LITTLE_ENDIAN;
+			break;
+		case ">":
+			header.order = ByteOrder.BIG_ENDIAN;
+			break;
+		default:
+			header.order = ByteOrder.nativeOrder();
+			break;
+		}
+		header.type = DType.of( descr.group( 2 ).charAt( 0 ), Integer.parseInt( descr.group( 3 ) ) );
+
+		final Matcher fortran = FORTRAN_PATTERN.matcher( dict );
+		header.fortranOrder = fortran.find() && fortran.group( 1 ).equals( "True" );
+
+		final Matcher shape = SHAPE_PATTERN.matcher( dict );
+		if ( !shape.find() )
+			throw new IOException( "Could not find the 'shape' descriptor in the file header." );
+		header.nRows = Integer.parseInt( shape.group( 1 ) );
+		header.nCols = ( shape.group( 2 ) == null || shape.group( 2 ).isEmpty() )
+				? 1
+				: Integer.parseInt( shape.group( 2 ) );
+
+		header.dataStart = headerStart + headerLength;
+		final long expected = header.dataStart + ( long ) header.nRows * header.nCols * header.type.size;
+		if ( channel.size() < expected )
+			throw new IOException( "The file " + filePath + " is truncated: " + channel.size() + " bytes instead of " + expected + "." );
+		return header;
+	}
+
+	private static void readFully( final FileChannel channel, final ByteBuffer buffer, final long position ) throws IOException
+	{
+		long pos = position;
+		while ( buffer.hasRemaining() )
+		{
+			final int n = channel.read( buffer, pos );
+			if ( n < 0 )
+				throw new IOException( "Unexpected end of file." );
+			pos += n;
+		}
+	}
+
+	public int getNumRows()
+	{
+		return nRows;
+	}
+
+	public int getNumColumns()
+	{
+		return nCols;
+	}
+
+	public DType getDType()
+	{
+		return type;
+	}
+
+	public ByteOrder getByteOrder()
+	{
+		return order;
+	}
+
+	/**
+	 * Returns whether the columns of this array are contiguous in the file,
+	 * which is the case for arrays stored in Fortran order and for 1D arrays.
+	 * Only then can columns be obtained as buffer views.
+	 *
+	 * @return <code>true</code> if the columns are contiguous.
+	 */
+	public boolean isFortranOrder()
+	{
+		return fortranOrder;
+	}
+
+	/**
+	 * Returns the value at the specified position, converted to a double.
+	 *
+	 * @param row
+	 *            the row.
+	 * @param col
+	 *            the column.
+	 * @return the value.
+	 */
+	public double get( final int row, final int col )
+	{
+		final ByteBuffer segment;
+		final int index;
+		if ( fortranOrder )
+		{
+			segment = segments[ col ];
+			index = row;
+		}
+		else
+		{
+			segment = segments[ row / rowsPerSegment ];
+			index = ( row % rowsPerSegment ) * nCols + col;
+		}
+		switch ( type )
+		{
+		case FLOAT32:
+			return segment.getFloat( index * 4 );
+		case FLOAT64:
+			return segment.getDouble( index * 8 );
+		case INT32:
+			return segment.getInt( index * 4 );
+		case INT64:
+			return segment.getLong( index * 8 );
+		default:
+			throw new IllegalStateException( "Unknown data type: " + type );
+		}
+	}
+
+	/**
+	 * Returns a view of the specified column of an array of 64-bit floats,
+	 * without copy.
+	 *
+	 * @param col
+	 *            the column.
+	 * @return a read-only view of the column.
+	 * @throws UnsupportedOperationException
+	 *             if the array is not in Fortran order, or if it does not
+	 *             store 64-bit floats.
+	 */
+	public DoubleBuffer getDoubleColumn( final int col )
+	{
+		checkColumnView( DType.FLOAT64 );
+		return segments[ col ].duplicate().order( order ).asDoubleBuffer();
+	}
+
+	/**
+	 * Returns a view of the specified column of an array of 32-bit floats,
+	 * without copy.
+	 *
+	 * @param col
+	 *            the column.
+	 * @return a read-only view of the column.
+	 * @throws UnsupportedOperationException
+	 *             if the array is not in Fortran order, or if it does not
+	 *             store 32-bit floats.
+	 */
+	public FloatBuffer getFloatColumn( final int col )
+	{
+		checkColumnView( DType.FLOAT32 );
+		return segments[ col ].duplicate().order( order ).asFloatBuffer();
+	}
+
+	private void checkColumnView( final DType expected )
+	{
+		if ( !fortranOrder )
+			throw new UnsupportedOperationException( "Columns of an array in C order are not contiguous. Use get() or readColumn()." );
+		if ( type != expected )
+			throw new UnsupportedOperationException( "The array stores " + type + " values, not " + expected + "." );
+	}
+
+	/**
+	 * Copies the specified column in a new array of doubles, whatever the
+	 * layout and the type of the data.
+	 *
+	 * @param col
+	 *            the column.
+	 * @return a new array.
+	 */
+	public double[] readColumn( final int col )
+	{
+		final double[] out = new double[ nRows ];
+		if ( fortranOrder && type == DType.FLOAT64 )
+		{
+			getDoubleColumn( col ).get( out );
+			return out;
+		}
+		for ( int r = 0; r < nRows; r++ )
+			out[ r ] = get( r, col );
+		return out;
+	}
+}
@@ -0,0 +1,179 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fr.pasteur.iah.extrack.numpy;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import fr.pasteur.iah.extrack.compute.TrackStore;
+
+/**
+ * Reads the tracks of a NumPy file a chunk at a time, so that files larger
+ * than the memory can be processed. The file is memory-mapped with
+ * {@link NumPyArray}.
+ * <p>
+ * The file holds one localization per row, with the X and Y positions in the
+ * first two columns, the frame in the third and the track ID in the fourth.
+ * Each run of rows with the same track ID makes one track. Chunks are made of
+ * whole tracks, in the order of the file.
+ */
+public class NumPyTrackReader
+{
+
+	private final NumPyArray array;
+
+	private final int nRows;
+
+	private final int nCols;
+
+	private int rowsRead;
+
+	/**
+	 * First row of the next chunk, read ahead to find the end of the last
+	 * track of the current chunk. <code>null</code> if there is none.
+	 */
+	private double[] pending;
+
+	/**
+	 * Opens the specified NumPy file.
+	 *
+	 * @param filePath
+	 *            the path to the NumPy file.
+	 * @throws IOException
+	 *             if the file cannot be read, is not a NumPy file or has less
+	 *             than 4 columns.
+	 */
+	public NumPyTrackReader( final String filePath ) throws IOException
+	{
+		this.array = NumPyArray.open( filePath );
+		this.nRows = array.getNumRows();
+		this.nCols = array.getNumColumns();
+		if ( nCols < 4 )
+			throw new IOException( "The file " + filePath + " does not have a track ID column." );
+	}
+
+	/**
+	 * Returns the number of rows of the file, that is the total number of
+	 * localizations.
+	 *
+	 * @return the number of rows.
+	 */
+	public int getNumRows()
+	{
+		return nRows;
+	}
+
+	/**
+	 * Reads the next tracks of the file. Tracks are added to the chunk until
+	 * it holds at least the specified number of localizations, so a chunk is
+	 * larger by at most the length of its last track.
+	 *
+	 * @param maxNbLocs
+	 *            the number of localizations after which no track is
+	 *            started.
+	 * @return the next chunk, or <code>null</code> if all the tracks were
+	 *         read.
+	 */
+	public Chunk read( final int maxNbLocs )
+	{
+		if ( pending == null && rowsRead == nRows )
+			return null;
+
+		final TrackStore.Builder builder = new TrackStore.Builder( 2 );
+		double[] frames = new double[ 64 ];
+		int nLocs = 0;
+		double trackID = Double.NaN;
+		while ( pending != null || rowsRead < nRows )
+		{
+			final double[] row = ( pending != null ) ? pending : readRow();
+			pending = null;
+			if ( row[ 3 ] != trackID )
+			{
+				if ( nLocs >= maxNbLocs )
+				{
+					pending = row;
+					break;
+				}
+				trackID = row[ 3 ];
+				builder.beginTrack( ( int ) trackID );
+			}
+
+			builder.addLocalization( row[ 0 ], row[ 1 ] );
+			if ( nLocs == frames.length )
+				frames = Arrays.copyOf( frames, 2 * nLocs );
+			frames[ nLocs ] = row[ 2 ];
+			nLocs++;
+		}
+		return new Chunk( builder.build(), Arrays.copyOf( frames, nLocs ) );
+	}
+
+	private double[] readRow()
+	{
+		final double[] row = new double[ nCols ];
+		for ( int c = 0; c < nCols; c++ )
+			row[ c ] = array.get( rowsRead, c );
+		rowsRead++;
+		return row;
+	}
+
+	/**
+	 * Tracks read from a NumPy file, with the frame of each localization.
+	 */
+	public static final class Chunk
+	{
+
+		private final TrackStore tracks;
+
+		private final double[] frames;
+
+		private Chunk( final TrackStore tracks, final double[] frames )
+		{
+			this.tracks = tracks;
+			this.frames = frames;
+		}
+
+		/**
+		 * Returns the tracks of this chunk.
+		 *
+		 * @return the tracks.
+		 */
+		public TrackStore getTracks()
+		{
+			return tracks;
+		}
+
+		/**
+		 * Returns the frame of the specified localization, as stored in the
+		 * file.
+		 *
+		 * @param track
+		 *            the index of the track in the chunk.
+		 * @param row
+		 *            the index of the localization in the track.
+		 * @return the frame.
+		 */
+		public double getFrame( final int track, final int row )
+		{
+			return frames[ tracks.offset( track ) + row ];
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fr.pasteur.iah.extrack.numpy;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a 2D array of doubles to a NumPy file, one row at a time. The
+ * number of rows must be known when the file is opened, since it is part of
+ * the header.
+ */
+public class NumPyWriter implements Closeable
+{
+
+	private static final byte[] NUMPY_MAGIC = new byte[] { ( byte ) 0x93, 'N', 'U', 'M', 'P', 'Y', 1, 0 };
+
+	private final String filePath;
+
+	private final OutputStream out;
+
+	private final int nRows;
+
+	private final int nCols;
+
+	private final ByteBuffer line;
+
+	private int rowsWritten;
+
+	/**
+	 * Creates the specified NumPy file and writes its header.
+	 *
+	 * @param filePath
+	 *            the path to the NumPy file.
+	 * @param nRows
+	 *            the number of rows that will be written.
+	 * @param nCols
+	 *            the number of columns.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public NumPyWriter( final String filePath, final int nRows, final int nCols ) throws IOException
+	{
+		this.filePath = filePath;
+		this.nRows = nRows;
+		this.nCols = nCols;
+		this.line = ByteBuffer.allocate( 8 * nCols ).order( ByteOrder.LITTLE_ENDIAN );
+		this.out = new BufferedOutputStream( new FileOutputStream( filePath ) );
+
+		// Header padded with spaces so that the data starts on 64 bytes.
+		final StringBuilder header = new StringBuilder();
+		header.append( "{'descr': '<f8', 'fortran_order': False, 'shape': (" )
+				.append( nRows ).append( ", " ).append( nCols ).append( "), }" );
+		while ( ( NUMPY_MAGIC.length + 2 + header.length() + 1 ) % 64 != 0 )
+			header.append( ' ' );
+		header.append( '\n' );
+		final byte[] headerBytes = header.toString().getBytes( StandardCharsets.US_ASCII );
+		out.write( NUMPY_MAGIC );
+		out.write( headerBytes.length & 0xff );
+		out.write( ( headerBytes.length >> 8 ) & 0xff );
+		out.write( headerBytes );
+	}
+
+	/**
+	 * Writes the next row.
+	 *
+	 * @param values
+	 *            the values of the row. Must have as many elements as there
+	 *            are columns.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public void writeRow( final double... values ) throws IOException
+	{
+		if ( values.length != nCols )
+			throw new IllegalArgumentException( "Expected " + nCols + " values, got " + values.length + "." );
+		if ( rowsWritten == nRows )
+			throw new IOException( "All the " + nRows + " rows of " + filePath + " were already written." );
+
+		line.clear();
+		for ( final double value : values )
+			line.putDouble( value );
+		out.write( line.array() );
+		rowsWritten++;
+	}
+
+	/**
+	 * Closes the file.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be written, or if less rows were written
+	 *             than declared in the header.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		out.close();
+		if ( rowsWritten != nRows )
+			throw new IOException( "Only " + rowsWritten + " of the " + nRows + " rows of " + filePath + " were written." );
+	}
+}
@@ -28,7 +28,6 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.Map;
 import java.util.function.Consumer;
 
 import javax.swing.JFrame;
@@ -41,13 +40,14 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonSyntaxException;
 
-import Jama.Matrix;
 import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.TrackMate;
 import fr.pasteur.iah.extrack.compute.ExTrackDoPredictions;
 import fr.pasteur.iah.extrack.compute.ExTrackParameterOptimizer;
 import fr.pasteur.iah.extrack.compute.ExTrackParameters;
+import fr.pasteur.iah.extrack.compute.TrackStore;
+import fr.pasteur.iah.extrack.trackmate.ExTrackImporter;
 import fr.pasteur.iah.extrack.util.ExTrackUtil;
 import fr.pasteur.iah.extrack.util.FileChooser;
 import fr.pasteur.iah.extrack.util.FileChooser.DialogType;
@@ -82,6 +82,34 @@ public class ExTrackActionController
 		gui.btnEstimStart.addActionListener( e -> startEstimation() );
 		gui.btnEstimCancel.addActionListener( e -> cancelEstimation() );
 		gui.btnCompute.addActionListener( e -> computeProbabilities() );
+		gui.btnAllFeatures.addActionListener( e -> computeAllFeatures() );
+	}
+
+	private void computeAllFeatures()
+	{
+		final EverythingDisablerAndReenabler reenabler = new EverythingDisablerAndReenabler(
+				SwingUtilities.getWindowAncestor( gui ),
+				new Class[] { JLabel.class } );
+		reenabler.disable();
+		gui.log( "Computing all features..." );
+		new Thread( () -> {
+			try
+			{
+				ExTrackImporter.computeAllFeatures( trackmate );
+				gui.log( "All features computed." );
+			}
+			catch ( final RuntimeException e )
+			{
+				gui.error( "Computing features failed: " + e.getMessage() );
+				e.printStackTrace();
+			}
+			finally
+			{
+				reenabler.reenable();
+				gui.btnEstimCancel.setEnabled( false );
+				gui.btnEstimStart.setEnabled( true );
+			}
+		} ).start();
 	}
 
 	private void computeProbabilities()
@@ -97,13 +125,18 @@ public class ExTrackActionController
 				final Model model = trackmate.getModel();
 				final ExTrackDoPredictions predictions = new ExTrackDoPredictions( parameters, model, logger );
 				predictions.run();
+				gui.log( "States predictions computed." );
+			}
+			catch ( final RuntimeException e )
+			{
+				gui.error( "States predictions failed: " + e.getMessage() );
+				e.printStackTrace();
 			}
 			finally
 			{
 				reenabler.reenable();
 				gui.btnEstimCancel.setEnabled( false );
 				gui.btnEstimStart.setEnabled( true );
-				gui.log( "States predictions computed." );
 			}
 		} ).start();
 	}
@@ -145,7 +178,7 @@ public class ExTrackActionController
 							.build();
 					SwingUtilities.invokeLater( () -> gui.setEstimationParameters( params ) );
 				};
-				final Map< Integer, Matrix > tracks = ExTrackUtil.toMatrix( trackmate.getModel() );
+				final TrackStore tracks = ExTrackUtil.toTrackStore( trackmate.getModel() );
 				final ExTrackParameterOptimizer optimizer = new ExTrackParameterOptimizer( startPoint, tracks, logger, valueWatcher );
 				this.cancelable = optimizer;
 				optimizer.run();
@@ -72,6 +72,8 @@ public class ExTrackActionPanel extends JPanel
 
 	final JButton btnCompute;
 
+	final JButton btnAllFeatures;
+
 	final JButton btnLoad;
 
 	final JButton btnSave;
@@ -151,6 +153,11 @@ public class ExTrackActionPanel extends JPanel
 		panelButtons.add( btnCompute );
 		btnCompute.setFont( btnCompute.getFont().deriveFont( btnCompute.getFont().getSize() - 2f ) );
 
+		btnAllFeatures = new JButton( "Compute all features" );
+		btnAllFeatures.setToolTipText( "Compute the TrackMate features skipped by an import with only ExTrack and position features." );
+		panelButtons.add( btnAllFeatures );
+		btnAllFeatures.setFont( btnAllFeatures.getFont().deriveFont( btnAllFeatures.getFont().getSize() - 2f ) );
+
 		final JLabel lblTitle = new JLabel( ExTrackGuiUtil.getIcon(), JLabel.CENTER );
 		lblTitle.setFont( getFont().deriveFont( 42 ) );
 		add( lblTitle, BorderLayout.NORTH );
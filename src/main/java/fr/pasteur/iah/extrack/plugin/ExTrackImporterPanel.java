@@ -39,6 +39,7 @@ import javax.swing.BoxLayout;
 import javax.swing.DefaultComboBoxModel;
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JFormattedTextField;
 import javax.swing.JFrame;
@@ -91,6 +92,10 @@ public class ExTrackImporterPanel extends JPanel
 
 	static String lastTimeUnits = "s";
 
+	static boolean lastLazyFeatures = false;
+
+	static boolean lastVirtualStack = false;
+
 	private final JTextField textFieldDataPath;
 
 	private final JTextField textFieldImgPath;
@@ -170,9 +175,9 @@ public class ExTrackImporterPanel extends JPanel
 
 		final GridBagLayout gridBagLayout = new GridBagLayout();
 		gridBagLayout.columnWidths = new int[] { 0, 0 };
-		gridBagLayout.rowHeights = new int[] { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 51, 0 };
+		gridBagLayout.rowHeights = new int[] { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 51, 0 };
 		gridBagLayout.columnWeights = new double[] { 1.0, Double.MIN_VALUE };
-		gridBagLayout.rowWeights = new double[] { 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 1.0, Double.MIN_VALUE };
+		gridBagLayout.rowWeights = new double[] { 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 1.0, Double.MIN_VALUE };
 		setLayout( gridBagLayout );
 
 		final JLabel lblIcon = new JLabel( getIcon() );
@@ -362,11 +367,30 @@ public class ExTrackImporterPanel extends JPanel
 		final JLabel lblDetectionRadiusUnits = new JLabel( "  " );
 		panelDetectionRadius.add( lblDetectionRadiusUnits );
 
+		final JCheckBox chckbxLazyFeatures = new JCheckBox( "Only compute ExTrack and position features (faster)" );
+		chckbxLazyFeatures.setSelected( lastLazyFeatures );
+		final GridBagConstraints gbc_chckbxLazyFeatures = new GridBagConstraints();
+		gbc_chckbxLazyFeatures.insets = new Insets( 5, 5, 5, 5 );
+		gbc_chckbxLazyFeatures.anchor = GridBagConstraints.WEST;
+		gbc_chckbxLazyFeatures.gridx = 0;
+		gbc_chckbxLazyFeatures.gridy = 12;
+		add( chckbxLazyFeatures, gbc_chckbxLazyFeatures );
+
+		final JCheckBox chckbxVirtualStack = new JCheckBox( "Open TIFF image as virtual stack" );
+		chckbxVirtualStack.setSelected( lastVirtualStack );
+		chckbxVirtualStack.setEnabled( imp == null );
+		final GridBagConstraints gbc_chckbxVirtualStack = new GridBagConstraints();
+		gbc_chckbxVirtualStack.insets = new Insets( 5, 5, 5, 5 );
+		gbc_chckbxVirtualStack.anchor = GridBagConstraints.WEST;
+		gbc_chckbxVirtualStack.gridx = 0;
+		gbc_chckbxVirtualStack.gridy = 13;
+		add( chckbxVirtualStack, gbc_chckbxVirtualStack );
+
 		final JButton btnImport = new JButton( "Import" );
 		final GridBagConstraints gbc_btnImport = new GridBagConstraints();
 		gbc_btnImport.anchor = GridBagConstraints.SOUTHEAST;
 		gbc_btnImport.gridx = 0;
-		gbc_btnImport.gridy = 12;
+		gbc_btnImport.gridy = 14;
 		add( btnImport, gbc_btnImport );
 
 		/*
@@ -399,7 +423,9 @@ public class ExTrackImporterPanel extends JPanel
 				( ( Number ) ftfDetectionRadius.getValue() ).doubleValue(),
 				( String ) comboBoxSpaceUnits.getSelectedItem(),
 				( ( Number ) ftfFrameInterval.getValue() ).doubleValue(),
-				( String ) comboBoxTimeUnits.getSelectedItem() ) );
+				( String ) comboBoxTimeUnits.getSelectedItem(),
+				chckbxLazyFeatures.isSelected(),
+				chckbxVirtualStack.isSelected() ) );
 
 	}
 
@@ -411,7 +437,9 @@ public class ExTrackImporterPanel extends JPanel
 			final double radius,
 			final String spaceUnits,
 			final double frameInterval,
-			final String timeUnits )
+			final String timeUnits,
+			final boolean lazyFeatures,
+			final boolean virtualStack )
 	{
 		final EverythingDisablerAndReenabler disabler = new EverythingDisablerAndReenabler( getParent(), new Class[] { JLabel.class } );
 		disabler.disable();
@@ -423,6 +451,8 @@ public class ExTrackImporterPanel extends JPanel
 		lastFrameInterval = frameInterval;
 		lastSpatialUnits = spaceUnits;
 		lastTimeUnits = timeUnits;
+		lastLazyFeatures = lazyFeatures;
+		lastVirtualStack = virtualStack;
 
 		new Thread( "TrackMate-ExTrack importer thread" )
 		{
@@ -441,6 +471,9 @@ public class ExTrackImporterPanel extends JPanel
 					logText.append( " - Pixel size: " + pixelSize + " " + spaceUnits + '\n' );
 					logText.append( " - Frame interval: " + frameInterval + " " + timeUnits + '\n' );
 					logText.append( " - Detection radius: " + radius + " " + spaceUnits + '\n' );
+					if ( lazyFeatures )
+						logText.append( " - Only ExTrack and position features computed. "
+								+ "The others can be computed with 'Compute all features' in the ExTrack action panel.\n" );
 
 					final ExTrackImporter importer;
 					if ( imp == null )
@@ -456,6 +489,8 @@ public class ExTrackImporterPanel extends JPanel
 								imp,
 								dataPath,
 								radius );
+					importer.setLazyFeatures( lazyFeatures );
+					importer.setVirtualStack( virtualStack );
 
 					if ( !importer.checkInput() || !importer.process() )
 					{
@@ -488,13 +523,24 @@ public class ExTrackImporterPanel extends JPanel
 						}
 						settings.imp.setOpenAsHyperStack( true );
 
-						// Resave the image.
-						final String tifImagePath = imagePath.substring( 0, imagePath.lastIndexOf( '.' ) ) + ".tif";
-						final boolean resaveOk = IJ.saveAsTiff( imp, tifImagePath );
-						final String saveMsg = ( resaveOk )
-								? "Resaving image succesful."
-								: "Problem resaving the image to TIF file. Saved TrackMate file might not reload properly.";
-						logText.append( saveMsg );
+						/*
+						 * Resave the image. Not for a virtual stack: it is
+						 * already a TIF file, and it would be overwritten while
+						 * being read.
+						 */
+						if ( imp.getStack().isVirtual() )
+						{
+							logText.append( "Image opened as a virtual stack, not resaved." );
+						}
+						else
+						{
+							final String tifImagePath = imagePath.substring( 0, imagePath.lastIndexOf( '.' ) ) + ".tif";
+							final boolean resaveOk = IJ.saveAsTiff( imp, tifImagePath );
+							final String saveMsg = ( resaveOk )
+									? "Resaving image succesful."
+									: "Problem resaving the image to TIF file. Saved TrackMate file might not reload properly.";
+							logText.append( saveMsg );
+						}
 					}
 
 					// Main objects.
@@ -28,17 +28,26 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.stream.DoubleStream;
-import java.util.stream.IntStream;
+import java.util.Map;
 
 import javax.swing.JFrame;
 
+import org.jgrapht.graph.DefaultWeightedEdge;
+import org.jgrapht.graph.SimpleWeightedGraph;
+
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.SelectionModel;
 import fiji.plugin.trackmate.Settings;
 import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
 import fiji.plugin.trackmate.TrackMate;
+import fiji.plugin.trackmate.features.edges.EdgeTargetAnalyzer;
+import fiji.plugin.trackmate.features.edges.EdgeTimeLocationAnalyzer;
+import fiji.plugin.trackmate.features.track.TrackDurationAnalyzer;
+import fiji.plugin.trackmate.features.track.TrackIndexAnalyzer;
+import fiji.plugin.trackmate.features.track.TrackLocationAnalyzer;
 import fiji.plugin.trackmate.gui.GuiUtils;
 import fiji.plugin.trackmate.gui.displaysettings.DisplaySettings;
 import fiji.plugin.trackmate.gui.displaysettings.DisplaySettings.TrackDisplayMode;
@@ -48,6 +57,7 @@ import fiji.plugin.trackmate.gui.wizard.TrackMateWizardSequence;
 import fiji.plugin.trackmate.gui.wizard.WizardSequence;
 import fiji.plugin.trackmate.visualization.TrackMateModelView;
 import fiji.plugin.trackmate.visualization.hyperstack.HyperStackDisplayer;
+import fr.pasteur.iah.extrack.numpy.NumPyArray;
 import fr.pasteur.iah.extrack.numpy.NumPyReader;
 import ij.IJ;
 import ij.ImageJ;
@@ -87,6 +97,9 @@ public class ExTrackImporter implements OutputAlgorithm< TrackMate >
 
 	private TrackMate trackmate;
 
+	private boolean lazyFeatures = false;
+
+	private boolean virtualStack = false;
 
 	public ExTrackImporter(
 			final String imageFilePath,
@@ -104,6 +117,37 @@ public class ExTrackImporter implements OutputAlgorithm< TrackMate >
 		this.timeUnits = timeUnits;
 	}
 
+	/**
+	 * Sets whether only the ExTrack and positional features are computed at
+	 * import. The intensity and morphology analyzers shipped with TrackMate are
+	 * not needed by ExTrack and dominate the import time on large data sets.
+	 * They can be computed later with {@link #computeAllFeatures(TrackMate)}.
+	 * 
+	 * @param lazyFeatures
+	 *            if <code>true</code>, skip the analyzers that ExTrack does not
+	 *            use. By default, all analyzers are run.
+	 */
+	public void setLazyFeatures( final boolean lazyFeatures )
+	{
+		this.lazyFeatures = lazyFeatures;
+	}
+
+	/**
+	 * Sets whether a TIFF image file is opened as a virtual stack. Only the
+	 * header of the file is read at import, to build the settings, and the
+	 * pixel data are read when a view displays them. Images in other formats
+	 * are loaded in memory. Best used with lazy features, as the intensity
+	 * analyzers read all the pixel data.
+	 * 
+	 * @param virtualStack
+	 *            if <code>true</code>, open TIFF files as virtual stacks. By
+	 *            default, the image is loaded in memory.
+	 */
+	public void setVirtualStack( final boolean virtualStack )
+	{
+		this.virtualStack = virtualStack;
+	}
+
 	@Override
 	public boolean checkInput()
 	{
@@ -184,90 +228,213 @@ public class ExTrackImporter implements OutputAlgorithm< TrackMate >
 
 	protected Settings createSettings( final String imageFile )
 	{
-		final ImagePlus imp = IJ.openImage( imageFile );
+		final ImagePlus imp = openImage( imageFile );
 
 		final Settings settings = new Settings( imp );
-		settings.addAllAnalyzers();
+		addAnalyzers( settings );
+
+		return settings;
+	}
+
+	private ImagePlus openImage( final String imageFile )
+	{
+		final String name = imageFile.toLowerCase();
+		if ( virtualStack && ( name.endsWith( ".tif" ) || name.endsWith( ".tiff" ) ) )
+		{
+			final ImagePlus imp = IJ.openVirtual( imageFile );
+			if ( imp != null )
+				return imp;
+		}
+		return IJ.openImage( imageFile );
+	}
+
+	/**
+	 * Registers the feature analyzers of an import in the specified settings:
+	 * the ExTrack analyzers and, depending on {@link #setLazyFeatures(boolean)},
+	 * either all the TrackMate analyzers or only the positional ones.
+	 * 
+	 * @param settings
+	 *            the settings to add the analyzers to.
+	 */
+	protected void addAnalyzers( final Settings settings )
+	{
+		if ( lazyFeatures )
+		{
+			// Positional features only.
+			settings.addEdgeAnalyzer( new EdgeTargetAnalyzer() );
+			settings.addEdgeAnalyzer( new EdgeTimeLocationAnalyzer() );
+			settings.addTrackAnalyzer( new TrackIndexAnalyzer() );
+			settings.addTrackAnalyzer( new TrackDurationAnalyzer() );
+			settings.addTrackAnalyzer( new TrackLocationAnalyzer() );
+		}
+		else
+		{
+			settings.addAllAnalyzers();
+		}
 
 		// ExTrack features.
 		settings.addSpotAnalyzerFactory( new ExTrackProbabilitiesFeature<>() );
 		settings.addTrackAnalyzer( new ExTrackTrackInfo() );
+	}
+
+	/**
+	 * Computes the features of all the TrackMate analyzers on the model of
+	 * the specified TrackMate instance. This completes an import done with
+	 * lazy features, when the features ExTrack does not compute are needed.
+	 * The ExTrack features already in the model are kept.
+	 * 
+	 * @param trackmate
+	 *            the TrackMate instance returned by the importer.
+	 */
+	public static void computeAllFeatures( final TrackMate trackmate )
+	{
+		final Settings settings = trackmate.getSettings();
+		settings.clearSpotAnalyzerFactories();
+		settings.clearEdgeAnalyzers();
+		settings.clearTrackAnalyzers();
+		settings.addAllAnalyzers();
+		settings.addSpotAnalyzerFactory( new ExTrackProbabilitiesFeature<>() );
+		settings.addTrackAnalyzer( new ExTrackTrackInfo() );
 
-		return settings;
+		trackmate.computeSpotFeatures( false );
+		trackmate.computeEdgeFeatures( false );
+		trackmate.computeTrackFeatures( false );
 	}
 
-	protected Model createModel( final String dataFile, final double radius ) throws FileNotFoundException, IOException
+	/**
+	 * Groups the rows of a table by track ID, in one sort. Each sort key
+	 * packs the track ID in its high bits and the row in its low bits, so the
+	 * sorted keys list the rows of each track in increasing order, track
+	 * after track.
+	 *
+	 * @param trackIDs
+	 *            the track ID of each row.
+	 * @return the rows of each track, in increasing order. The tracks are in
+	 *         the order of their first row.
+	 */
+	static int[][] groupRowsByTrack( final int[] trackIDs )
 	{
-		// Read NumPy file.
-		final double[][] data = NumPyReader.readFile( dataFile );
+		final int nRows = trackIDs.length;
+		final long[] keys = new long[ nRows ];
+		for ( int r = 0; r < nRows; r++ )
+			keys[ r ] = ( ( long ) trackIDs[ r ] << 32 ) | r;
+		Arrays.sort( keys );
+
+		// Start of each track in the sorted keys.
+		final int[] starts = new int[ nRows + 1 ];
+		int nTracks = 0;
+		for ( int i = 0; i < nRows; i++ )
+			if ( i == 0 || ( keys[ i ] >> 32 ) != ( keys[ i - 1 ] >> 32 ) )
+				starts[ nTracks++ ] = i;
+		starts[ nTracks ] = nRows;
+
+		// Order the tracks by their first row.
+		final long[] trackOrder = new long[ nTracks ];
+		for ( int k = 0; k < nTracks; k++ )
+			trackOrder[ k ] = ( ( keys[ starts[ k ] ] & 0xffffffffl ) << 32 ) | k;
+		Arrays.sort( trackOrder );
+
+		final int[][] tracks = new int[ nTracks ][];
+		for ( int j = 0; j < nTracks; j++ )
+		{
+			final int k = ( int ) trackOrder[ j ];
+			final int[] rows = new int[ starts[ k + 1 ] - starts[ k ] ];
+			for ( int i = 0; i < rows.length; i++ )
+				rows[ i ] = ( int ) keys[ starts[ k ] + i ];
+			tracks[ j ] = rows;
+		}
+		return tracks;
+	}
 
-		// Get all track IDs.
-		final int[] trackIDs = DoubleStream.of( data[ TRACKID_COLUMN ] )
-				.distinct()
-				.mapToInt( d -> ( int ) d )
-				.toArray();
+	protected Model createModel( final String dataFile, final double radius ) throws FileNotFoundException, IOException
+	{
+		// Map the NumPy file. Values are read from the file on access.
+		final NumPyArray data = NumPyArray.open( dataFile );
+		final int nCols = data.getNumColumns();
 
-		final Model model = new Model();
-		model.setPhysicalUnits( spaceUnits, timeUnits );
+		final int[] trackIDs = new int[ data.getNumRows() ];
+		for ( int r = 0; r < trackIDs.length; r++ )
+			trackIDs[ r ] = ( int ) data.get( r, TRACKID_COLUMN );
+		final int[][] tracks = groupRowsByTrack( trackIDs );
 
 		final double quality = 1.; // Dummy value?
 
-		model.beginUpdate();
-		try
+		/*
+		 * Create the spots track after track, in the order of the tracks in
+		 * the file, and the rows of each track in order. Spots take their ID
+		 * from a global counter when created, so this order makes the IDs the
+		 * same from one import to the next.
+		 */
+		final Map< Integer, List< Spot > > spotsPerFrame = new HashMap<>();
+		final SimpleWeightedGraph< Spot, DefaultWeightedEdge > graph = new SimpleWeightedGraph<>( DefaultWeightedEdge.class );
+		for ( final int[] rows : tracks )
 		{
-			// Loop over track IDs.
-			for ( final int trackID : trackIDs )
+			int t = 0;
+			for ( final int r : rows )
 			{
-				final int[] trackRows = IntStream.range( 0, data[ TRACKID_COLUMN ].length )
-						.filter( i -> data[ TRACKID_COLUMN ][ i ] == trackID )
-						.toArray();
-				Arrays.sort( trackRows );
-
-				final List< Spot > spots = new ArrayList<>( trackRows.length );
-				int t = 0;
-				for ( final int r : trackRows )
+				final double x = data.get( r, X_COLUMN );
+				final double y = data.get( r, Y_COLUMN );
+				final double z = 0.; // No Z?
+				final Spot spot = new Spot( x, y, z, radius, quality );
+
+				/*
+				 * If we have a 3rd column, use it as time column, if not take
+				 * detections in order they are stored.
+				 */
+				final int frame;
+				if ( nCols > 2 )
 				{
-					final double x = data[ X_COLUMN ][ r ];
-					final double y = data[ Y_COLUMN ][ r ];
-					final double z = 0.; // No Z?
-					final Spot spot = new Spot( x, y, z, radius, quality );
+					frame = ( int ) data.get( r, FRAME_COLUMN ) - 1;
 
 					/*
-					 * If we have a 3rd column, use it as time column, if not
-					 * take detections in order they are stored.
+					 * If we have a 4th column -> proba stuck.
 					 */
-					final int frame;
-					if ( data.length > 2 )
-					{
-						frame = ( int ) data[ FRAME_COLUMN ][ r ] - 1;
 
-						/*
-						 * If we have a 4th column -> proba stuck.
-						 */
-
-						if ( data.length > 4 )
+					if ( nCols > 4 )
+					{
+						final double probaStuck = data.get( r, PROBA_STUCK_COLUMN );
+						spot.putFeature( ExTrackProbabilitiesFeature.P_STUCK, Double.valueOf( probaStuck ) );
+						if ( nCols > 5 )
 						{
-							final double probaStuck = data[ PROBA_STUCK_COLUMN ][ r ];
-							spot.putFeature( ExTrackProbabilitiesFeature.P_STUCK, Double.valueOf( probaStuck ) );
-							if ( data.length > 5 )
-							{
-								final double probaDiffusive = data[ PROBA_DIFFUSIVE_COLUMN ][ r ];
-								spot.putFeature( ExTrackProbabilitiesFeature.P_DIFFUSIVE, Double.valueOf( probaDiffusive ) );
-							}
+							final double probaDiffusive = data.get( r, PROBA_DIFFUSIVE_COLUMN );
+							spot.putFeature( ExTrackProbabilitiesFeature.P_DIFFUSIVE, Double.valueOf( probaDiffusive ) );
 						}
 					}
-					else
-					{
-						frame = t++;
-					}
-					spot.putFeature( Spot.POSITION_T, frameInterval * frame );
-					model.addSpotTo( spot, Integer.valueOf( frame ) );
-					spots.add( spot );
-
 				}
-				spots.sort( Spot.frameComparator );
+				else
+				{
+					frame = t++;
+				}
+				spot.putFeature( Spot.POSITION_T, frameInterval * frame );
+				spotsPerFrame.computeIfAbsent( Integer.valueOf( frame ), f -> new ArrayList<>() ).add( spot );
+				graph.addVertex( spot );
+			}
+		}
+		final SpotCollection spotCollection = new SpotCollection();
+		for ( final Map.Entry< Integer, List< Spot > > entry : spotsPerFrame.entrySet() )
+			spotCollection.put( entry.getKey().intValue(), entry.getValue() );
+		spotCollection.setVisible( true );
+
+		final Model model = new Model();
+		model.setPhysicalUnits( spaceUnits, timeUnits );
 
-				// Store original track ID.
+		/*
+		 * The spots and tracks are set in bulk instead of being added one by
+		 * one, so there is no per-spot event. Listeners are instead notified
+		 * with SPOTS_COMPUTED and TRACKS_COMPUTED, which TrackCache and the
+		 * views handle as a full refresh. The model is new, so in practice
+		 * none is registered yet.
+		 */
+		model.beginUpdate();
+		try
+		{
+			model.setSpots( spotCollection, true );
+			model.setTracks( graph, true );
+
+			// Store original track IDs.
+			for ( final int[] rows : tracks )
+			{
+				final int trackID = trackIDs[ rows[ 0 ] ];
 				model.getFeatureModel().putTrackFeature(
 						trackID,
 						ExTrackTrackInfo.EXTRACK_TRACKID,
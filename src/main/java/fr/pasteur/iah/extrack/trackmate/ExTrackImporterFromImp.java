@@ -77,12 +77,7 @@ public class ExTrackImporterFromImp extends ExTrackImporter
 	protected Settings createSettings( final String imageFile )
 	{
 		final Settings settings = new Settings( imp );
-		settings.addAllAnalyzers();
-
-		// ExTrack features.
-		settings.addSpotAnalyzerFactory( new ExTrackProbabilitiesFeature<>() );
-		settings.addTrackAnalyzer( new ExTrackTrackInfo() );
-
+		addAnalyzers( settings );
 		return settings;
 	}
 }
@@ -23,7 +23,6 @@ package fr.pasteur.iah.extrack.util;
 
 import java.awt.Image;
 import java.text.DecimalFormat;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -33,6 +32,7 @@ import javax.swing.ImageIcon;
 import Jama.Matrix;
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Spot;
+import fr.pasteur.iah.extrack.compute.TrackStore;
 
 public class ExTrackUtil
 {
@@ -41,24 +41,30 @@ public class ExTrackUtil
 
 	public static final Map< Integer, Matrix > toMatrix( final Model model )
 	{
-		final Map< Integer, Matrix > Cs = new HashMap<>( model.getTrackModel().nTracks( true ) );
-		for ( final Integer trackID : model.getTrackModel().trackIDs( true ) )
-		{
-			final List< Spot > track = new ArrayList<>( model.getTrackModel().trackSpots( trackID ) );
-			track.sort( Spot.frameComparator );
-
-			final Matrix C = new Matrix( track.size(), 2 );
-			for ( int r = 0; r < track.size(); r++ )
-			{
-				final Spot spot = track.get( r );
-				C.set( r, 0, spot.getDoublePosition( 0 ) );
-				C.set( r, 1, spot.getDoublePosition( 1 ) );
-			}
-			Cs.put( trackID, C );
-		}
+		final TrackStore store = toTrackStore( model );
+		final Map< Integer, Matrix > Cs = new HashMap<>( store.size() );
+		for ( int t = 0; t < store.size(); t++ )
+			Cs.put( Integer.valueOf( store.getTrackID( t ) ), store.toMatrix( t ) );
 		return Cs;
 	}
 
+	/**
+	 * Packs the tracks of the specified model in a {@link TrackStore}, with
+	 * the spots of each track sorted by frame. The tracks are stored one after
+	 * the other in a single array instead of one matrix per track.
+	 * <p>
+	 * The extraction is cached with the model by {@link TrackCache}, so that
+	 * only the tracks edited since the last call are extracted again.
+	 *
+	 * @param model
+	 *            the model.
+	 * @return the track store. It is shared and must not be modified.
+	 */
+	public static final TrackStore toTrackStore( final Model model )
+	{
+		return TrackCache.get( model ).getTrackStore( model );
+	}
+
 	public static final Model toModel( final Map< Integer, Matrix > tracks )
 	{
 		final Model model = new Model();
@@ -0,0 +1,304 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fr.pasteur.iah.extrack.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.ModelChangeEvent;
+import fiji.plugin.trackmate.ModelChangeListener;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.TrackModel;
+import fr.pasteur.iah.extrack.compute.TrackStore;
+
+/**
+ * Keeps the tracks of a model extracted, with their spots sorted by frame,
+ * across the ExTrack computations of an interactive session.
+ * <p>
+ * The cache of a model is obtained with {@link #get(Model)}, and listens to
+ * the changes of the model. When spots or edges are edited, only the tracks
+ * they belong to are extracted again. A new detection or tracking clears the
+ * cache. The cache does not hold a reference to its model, so it does not
+ * prevent it from being garbage collected.
+ * <p>
+ * The tracks are returned as an immutable {@link Snapshot}, which pairs the
+ * store with the spots of its tracks, and can be used without holding any
+ * lock while the model is edited.
+ */
+public class TrackCache implements ModelChangeListener
+{
+
+	private static final Map< Model, TrackCache > CACHES = new WeakHashMap<>();
+
+	/**
+	 * The extracted tracks, by track ID.
+	 */
+	private final Map< Integer, CachedTrack > tracks = new HashMap<>();
+
+	/**
+	 * The ID of the track each cached spot was extracted with, to find the
+	 * tracks of the spots removed from the model.
+	 */
+	private final Map< Spot, Integer > spotTracks = new HashMap<>();
+
+	/**
+	 * The ID of the track each cached edge was extracted with. A removed edge
+	 * no longer has a track in the model.
+	 */
+	private final Map< DefaultWeightedEdge, Integer > edgeTracks = new HashMap<>();
+
+	/**
+	 * The snapshot returned by the last call to {@link #getTracks(Model)},
+	 * and the cached tracks it was built from. It is built again when one of
+	 * these tracks is extracted again.
+	 */
+	private Snapshot snapshot;
+
+	private List< CachedTrack > snapshotTracks;
+
+	private TrackCache()
+	{}
+
+	/**
+	 * Returns the track cache of the specified model, creating it and
+	 * registering it as a listener of the model on first use.
+	 *
+	 * @param model
+	 *            the model.
+	 * @return the cache of the model.
+	 */
+	public static TrackCache get( final Model model )
+	{
+		synchronized ( CACHES )
+		{
+			TrackCache cache = CACHES.get( model );
+			if ( cache == null )
+			{
+				cache = new TrackCache();
+				model.addModelChangeListener( cache );
+				CACHES.put( model, cache );
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * Returns the visible tracks of the specified model, packed in a store,
+	 * with the spots of each track sorted by frame. Only the tracks that
+	 * changed since the last call are extracted again.
+	 *
+	 * @param model
+	 *            the model this cache was obtained for.
+	 * @return the tracks and their spots. The snapshot is shared, and stays
+	 *         valid when the model changes.
+	 */
+	public synchronized Snapshot getTracks( final Model model )
+	{
+		final TrackModel trackModel = model.getTrackModel();
+		final Set< Integer > trackIDs = trackModel.trackIDs( true );
+		final List< CachedTrack > current = new ArrayList<>( trackIDs.size() );
+		for ( final Integer trackID : trackIDs )
+		{
+			CachedTrack track = tracks.get( trackID );
+			if ( track == null )
+			{
+				track = extract( trackModel, trackID );
+				tracks.put( trackID, track );
+			}
+			current.add( track );
+		}
+
+		// Forget the tracks merged into others or deleted.
+		if ( tracks.size() > current.size() )
+		{
+			final Set< Integer > allIDs = trackModel.trackIDs( false );
+			for ( final Integer trackID : new ArrayList<>( tracks.keySet() ) )
+				if ( !allIDs.contains( trackID ) )
+					evict( trackID );
+		}
+
+		if ( snapshot == null || !current.equals( snapshotTracks ) )
+		{
+			final TrackStore.Builder builder = new TrackStore.Builder( 2 );
+			final Spot[][] spots = new Spot[ current.size() ][];
+			for ( int t = 0; t < spots.length; t++ )
+			{
+				final CachedTrack track = current.get( t );
+				builder.beginTrack( track.trackID.intValue() );
+				for ( final Spot spot : track.spots )
+					builder.addLocalization( spot.getDoublePosition( 0 ), spot.getDoublePosition( 1 ) );
+				spots[ t ] = track.spots;
+			}
+			snapshot = new Snapshot( builder.build(), spots );
+			snapshotTracks = current;
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Returns the visible tracks of the specified model, packed in a store.
+	 * Same as <code>getTracks( model ).getTrackStore()</code>.
+	 *
+	 * @param model
+	 *            the model this cache was obtained for.
+	 * @return the tracks. The store is shared and must not be modified.
+	 */
+	public TrackStore getTrackStore( final Model model )
+	{
+		return getTracks( model ).getTrackStore();
+	}
+
+	private CachedTrack extract( final TrackModel trackModel, final Integer trackID )
+	{
+		final Spot[] spots = trackModel.trackSpots( trackID ).toArray( new Spot[ 0 ] );
+		Arrays.sort( spots, Spot.frameComparator );
+		for ( final Spot spot : spots )
+			spotTracks.put( spot, trackID );
+		final DefaultWeightedEdge[] edges = trackModel.trackEdges( trackID ).toArray( new DefaultWeightedEdge[ 0 ] );
+		for ( final DefaultWeightedEdge edge : edges )
+			edgeTracks.put( edge, trackID );
+		return new CachedTrack( trackID, spots, edges );
+	}
+
+	private void evict( final Integer trackID )
+	{
+		final CachedTrack track = tracks.remove( trackID );
+		if ( track != null )
+		{
+			for ( final Spot spot : track.spots )
+				spotTracks.remove( spot );
+			for ( final DefaultWeightedEdge edge : track.edges )
+				edgeTracks.remove( edge );
+		}
+	}
+
+	@Override
+	public synchronized void modelChanged( final ModelChangeEvent event )
+	{
+		switch ( event.getEventID() )
+		{
+		case ModelChangeEvent.SPOTS_COMPUTED:
+		case ModelChangeEvent.TRACKS_COMPUTED:
+			tracks.clear();
+			spotTracks.clear();
+			edgeTracks.clear();
+			break;
+
+		case ModelChangeEvent.MODEL_MODIFIED:
+		{
+			final TrackModel trackModel = ( ( Model ) event.getSource() ).getTrackModel();
+			final Set< Integer > changed = new HashSet<>();
+			for ( final Spot spot : event.getSpots() )
+			{
+				// The track of the spot before and after the change.
+				changed.add( spotTracks.remove( spot ) );
+				changed.add( trackModel.trackIDOf( spot ) );
+			}
+			for ( final DefaultWeightedEdge edge : event.getEdges() )
+			{
+				// Removed edges only have the track they were extracted with.
+				changed.add( edgeTracks.remove( edge ) );
+				changed.add( trackModel.trackIDOf( edge ) );
+			}
+			changed.remove( null );
+			for ( final Integer trackID : changed )
+				evict( trackID );
+			break;
+		}
+
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * The tracks of a model at the time of a call to
+	 * {@link TrackCache#getTracks(Model)}: a store with the localizations of
+	 * the tracks, and the spots they come from, in the same order.
+	 */
+	public static final class Snapshot
+	{
+
+		private final TrackStore store;
+
+		private final Spot[][] spots;
+
+		private Snapshot( final TrackStore store, final Spot[][] spots )
+		{
+			this.store = store;
+			this.spots = spots;
+		}
+
+		/**
+		 * Returns the localizations of the tracks.
+		 *
+		 * @return the track store. It is shared and must not be modified.
+		 */
+		public TrackStore getTrackStore()
+		{
+			return store;
+		}
+
+		/**
+		 * Returns the spots of the specified track, in the order of its
+		 * localizations in the store.
+		 *
+		 * @param track
+		 *            the index of the track in the store.
+		 * @return the spots of the track, sorted by frame. Must not be
+		 *         modified.
+		 */
+		public Spot[] getSpots( final int track )
+		{
+			return spots[ track ];
+		}
+	}
+
+	/**
+	 * The spots of a track, sorted by frame, and its edges.
+	 */
+	private static final class CachedTrack
+	{
+
+		private final Integer trackID;
+
+		private final Spot[] spots;
+
+		private final DefaultWeightedEdge[] edges;
+
+		private CachedTrack( final Integer trackID, final Spot[] spots, final DefaultWeightedEdge[] edges )
+		{
+			this.trackID = trackID;
+			this.spots = spots;
+			this.edges = edges;
+		}
+	}
+}
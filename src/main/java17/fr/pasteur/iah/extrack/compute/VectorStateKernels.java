@@ -0,0 +1,239 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fr.pasteur.iah.extrack.compute;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD implementation of {@link StateKernels} based on the incubating Vector
+ * API. Only compiled in the Java 17 layer of the multi-release JAR, and only
+ * usable when the JVM is started with
+ * <code>--add-modules jdk.incubator.vector</code>.
+ * <p>
+ * Sequences are processed by vectors of the preferred width of the CPU.
+ * Because the number of sequences per track and the number of patterns of the
+ * state tables are powers of two, a vector never straddles two tracks, and
+ * the table values of a vector are either contiguous or, when there are fewer
+ * patterns than lanes, the same tiled values for every vector. Calls with
+ * fewer sequences per track than lanes go to the scalar kernels. The
+ * arithmetic is performed in
+ * the same order as the scalar kernels, but the vector exponential and
+ * logarithm can differ from {@link Math} by rounding errors.
+ */
+class VectorStateKernels implements StateKernels
+{
+
+	private static final VectorSpecies< Double > SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	private final ScalarStateKernels scalar = new ScalarStateKernels();
+
+	VectorStateKernels()
+	{
+		if ( SPECIES.length() < 4 )
+			throw new UnsupportedOperationException( "SIMD registers too narrow: " + SPECIES );
+	}
+
+	@Override
+	public String toString()
+	{
+		return "SIMD, " + SPECIES.length() + " lanes of " + SPECIES.elementSize() + " bits";
+	}
+
+	@Override
+	public void logIntegralDiff(
+			final double localizationError,
+			final StateTables tables,
+			final double[][] obs,
+			final int n,
+			final double[][] Km,
+			final double[] Ks,
+			final double[] LP,
+			final int from,
+			final int to )
+	{
+		final int vlen = SPECIES.length();
+		if ( n < vlen )
+		{
+			scalar.logIntegralDiff( localizationError, tables, obs, n, Km, Ks, LP, from, to );
+			return;
+		}
+
+		final int nbDims = obs.length;
+		final double le = localizationError;
+		final double le2 = le * le;
+		final int stateMask = tables.stateMask & ( n - 1 );
+		final double[] diffusionLengths;
+		final double[] logTransitions;
+		final int tableMask;
+		if ( stateMask + 1 < vlen )
+		{
+			// Vectors are aligned, so lane l always has the pattern l & stateMask.
+			diffusionLengths = new double[ vlen ];
+			logTransitions = new double[ vlen ];
+			for ( int l = 0; l < vlen; l++ )
+			{
+				diffusionLengths[ l ] = tables.diffusionLengths[ l & stateMask ];
+				logTransitions[ l ] = tables.logTransitions[ l & stateMask ];
+			}
+			tableMask = 0;
+		}
+		else
+		{
+			diffusionLengths = tables.diffusionLengths;
+			logTransitions = tables.logTransitions;
+			tableMask = stateMask;
+		}
+		final DoubleVector one = DoubleVector.broadcast( SPECIES, 1. );
+		final int shift = Integer.numberOfTrailingZeros( n );
+		for ( int i = from; i < to; i += vlen )
+		{
+			final int t = i >> shift;
+			final int r = i & ( n - 1 );
+			final DoubleVector ks = DoubleVector.fromArray( SPECIES, Ks, i );
+			final DoubleVector cd = DoubleVector.fromArray( SPECIES, diffusionLengths, r & tableMask );
+			final DoubleVector ks2 = ks.mul( ks );
+			final DoubleVector cd2 = cd.mul( cd );
+			final DoubleVector var = ks2.add( le2 );
+			final DoubleVector ksOut = cd2.mul( le ).mul( le )
+					.add( cd2.mul( ks ).mul( ks ) )
+					.add( ks.broadcast( le2 ).mul( ks ).mul( ks ) )
+					.div( var )
+					.sqrt();
+			final DoubleVector twoKsOut2 = ksOut.mul( 2. ).mul( ksOut );
+			final DoubleVector twoKsOut2Var = twoKsOut2.mul( var );
+
+			DoubleVector sumKm = DoubleVector.zero( SPECIES );
+			for ( int c = 0; c < nbDims; c++ )
+			{
+				final double cc = obs[ c ][ t ];
+				final DoubleVector km = DoubleVector.fromArray( SPECIES, Km[ c ], i );
+				final DoubleVector kmOut = km.mul( le ).mul( le ).add( ks.mul( cc ).mul( ks ) ).div( var );
+				final DoubleVector dkm = km.sub( cc );
+				final DoubleVector num = km.mul( km ).mul( le ).mul( le )
+						.add( ks2.mul( cc ).mul( cc ) )
+						.add( dkm.mul( dkm ).mul( cd ).mul( cd ) );
+				sumKm = sumKm.add( kmOut.mul( kmOut ).div( twoKsOut2 ).sub( num.div( twoKsOut2Var ) ) );
+				kmOut.intoArray( Km[ c ], i );
+			}
+			final DoubleVector LC = sumKm.add( one.div( var.mul( 2 * Math.PI ).sqrt() )
+					.lanewise( VectorOperators.LOG )
+					.mul( nbDims ) );
+
+			ksOut.intoArray( Ks, i );
+			DoubleVector.fromArray( SPECIES, LP, i )
+					.add( DoubleVector.fromArray( SPECIES, logTransitions, r & tableMask ) )
+					.add( LC )
+					.intoArray( LP, i );
+		}
+	}
+
+	@Override
+	public void logIntegratedTerms(
+			final double localizationError,
+			final StateTables tables,
+			final double[][] obs,
+			final int n,
+			final double[][] Km,
+			final double[] Ks,
+			final double[] LP,
+			final double[] out,
+			final int from,
+			final int to )
+	{
+		final int vlen = SPECIES.length();
+		if ( n < vlen )
+		{
+			scalar.logIntegratedTerms( localizationError, tables, obs, n, Km, Ks, LP, out, from, to );
+			return;
+		}
+
+		// The fraction only depends on the parity of the index.
+		final double[] logFs = new double[ vlen ];
+		for ( int l = 0; l < vlen; l++ )
+			logFs[ l ] = tables.logF( l );
+		final DoubleVector logF = DoubleVector.fromArray( SPECIES, logFs, 0 );
+
+		final double le2 = localizationError * localizationError;
+		final int shift = Integer.numberOfTrailingZeros( n );
+		for ( int i = from; i < to; i += vlen )
+		{
+			final int t = i >> shift;
+			final DoubleVector ksLoop = DoubleVector.fromArray( SPECIES, Ks, i );
+			final DoubleVector ks = ksLoop.mul( ksLoop ).add( le2 ).sqrt();
+			DoubleVector sumC = DoubleVector.zero( SPECIES );
+			for ( int c = 0; c < obs.length; c++ )
+			{
+				final DoubleVector dx = DoubleVector.fromArray( SPECIES, Km[ c ], i ).neg().add( obs[ c ][ t ] );
+				sumC = sumC.add( dx.mul( dx ) );
+			}
+			final DoubleVector term = ks.mul( 2. * Math.PI ).mul( ks )
+					.lanewise( VectorOperators.LOG )
+					.neg()
+					.sub( sumC.div( ks.mul( 2. ).mul( ks ) ) );
+			DoubleVector.fromArray( SPECIES, LP, i )
+					.add( term )
+					.add( logF )
+					.intoArray( out, i );
+		}
+	}
+
+	@Override
+	public void fuseTracks( final double[][] Km, final double[] Ks, final double[] LP, final int currNbBs, final int from, final int to )
+	{
+		final int vlen = SPECIES.length();
+		final int i = currNbBs / 2;
+		if ( i < vlen )
+		{
+			scalar.fuseTracks( Km, Ks, LP, currNbBs, from, to );
+			return;
+		}
+
+		final int shift = Integer.numberOfTrailingZeros( i );
+		for ( int dst = from; dst < to; dst += vlen )
+		{
+			// Writes never overtake reads: dst <= src.
+			final int src = dst + ( dst >> shift ) * i;
+			final DoubleVector lp0 = DoubleVector.fromArray( SPECIES, LP, src );
+			final DoubleVector lp1 = DoubleVector.fromArray( SPECIES, LP, src + i );
+			final DoubleVector maxLP = lp0.max( lp1 );
+			final DoubleVector P0 = lp0.sub( maxLP ).lanewise( VectorOperators.EXP );
+			final DoubleVector P1 = lp1.sub( maxLP ).lanewise( VectorOperators.EXP );
+			final DoubleVector SP = P0.add( P1 );
+			final DoubleVector A0 = P0.div( SP );
+			final DoubleVector A1 = P1.div( SP );
+
+			for ( int c = 0; c < Km.length; c++ )
+			{
+				final DoubleVector km0 = DoubleVector.fromArray( SPECIES, Km[ c ], src );
+				final DoubleVector km1 = DoubleVector.fromArray( SPECIES, Km[ c ], src + i );
+				A0.mul( km0 ).add( A1.mul( km1 ) ).intoArray( Km[ c ], dst );
+			}
+
+			final DoubleVector ks0 = DoubleVector.fromArray( SPECIES, Ks, src );
+			final DoubleVector ks1 = DoubleVector.fromArray( SPECIES, Ks, src + i );
+			A0.mul( ks0 ).mul( ks0 ).add( A1.mul( ks1 ).mul( ks1 ) ).sqrt().intoArray( Ks, dst );
+			maxLP.add( SP.lanewise( VectorOperators.LOG ) ).intoArray( LP, dst );
+		}
+	}
+}
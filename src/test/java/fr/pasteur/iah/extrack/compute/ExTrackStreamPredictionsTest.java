@@ -0,0 +1,104 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fr.pasteur.iah.extrack.compute;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.Test;
+
+import Jama.Matrix;
+import fiji.plugin.trackmate.Logger;
+import fr.pasteur.iah.extrack.numpy.NumPyArray;
+import fr.pasteur.iah.extrack.numpy.NumPyWriter;
+
+public class ExTrackStreamPredictionsTest
+{
+
+	@Test
+	public void testSingleLocalizationTracks() throws IOException
+	{
+		// Tracks of one row, as exported for isolated detections.
+		final int[] lengths = new int[] { 1, 6, 1, 2, 9, 1 };
+		final Random random = new Random( 5l );
+		final Matrix[] tracks = new Matrix[ lengths.length ];
+		int nRows = 0;
+		for ( int t = 0; t < lengths.length; t++ )
+		{
+			tracks[ t ] = TestTracks.track( lengths[ t ], random );
+			nRows += lengths[ t ];
+		}
+
+		final ExTrackParameters params = ExTrackParameters.create()
+				.localizationError( 0.02 )
+				.diffusionLength0( 0.01 )
+				.diffusionLength1( 0.1 )
+				.F0( 0.5 )
+				.probabilityOfUnbinding( 0.2 )
+				.nbSubSteps( 1 )
+				.nFrames( 4 )
+				.build();
+		final FlatTrackState state = new FlatTrackState( 0.02, 0.01, 0.1, 0.5, 0.2, 1, true, 4, true );
+
+		final Path input = Files.createTempFile( "extrack", ".npy" );
+		final Path output = Files.createTempFile( "extrack-predictions", ".npy" );
+		try
+		{
+			try (final NumPyWriter writer = new NumPyWriter( input.toString(), nRows, 4 ))
+			{
+				for ( int t = 0; t < tracks.length; t++ )
+					for ( int r = 0; r < lengths[ t ]; r++ )
+						writer.writeRow( tracks[ t ].get( r, 0 ), tracks[ t ].get( r, 1 ), r, t );
+			}
+
+			final ExTrackStreamPredictions predictions = new ExTrackStreamPredictions( params, input.toString(), output.toString(), Logger.VOID_LOGGER );
+			predictions.setChunkSize( 4 );
+			predictions.process();
+
+			final NumPyArray array = NumPyArray.open( output.toString() );
+			assertEquals( nRows, array.getNumRows() );
+			int row = 0;
+			for ( int t = 0; t < tracks.length; t++ )
+			{
+				final Matrix expected = state.predict( tracks[ t ], state.newWorkspace( tracks[ t ] ) );
+				for ( int r = 0; r < lengths[ t ]; r++ )
+				{
+					final String msg = "track " + t + ", row " + r;
+					assertEquals( msg, t, array.get( row, 3 ), 0. );
+					assertEquals( msg, expected.get( r, 0 ), array.get( row, 4 ), 1e-12 );
+					assertEquals( msg, expected.get( r, 1 ), array.get( row, 5 ), 1e-12 );
+					assertEquals( msg, 1., array.get( row, 4 ) + array.get( row, 5 ), 1e-12 );
+					row++;
+				}
+			}
+		}
+		finally
+		{
+			Files.delete( input );
+			Files.deleteIfExists( output );
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fr.pasteur.iah.extrack.compute;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import Jama.Matrix;
+
+public class FlatTrackStateTest
+{
+
+	private static final double TOLERANCE = 1e-12;
+
+	@Test
+	public void testSameAsTrackState()
+	{
+		final Random random = new Random( 42 );
+		for ( int nbSubSteps = 1; nbSubSteps <= 2; nbSubSteps++ )
+		{
+			for ( int frameLen = nbSubSteps + 2; frameLen <= 6; frameLen++ )
+			{
+				for ( int length = 3; length <= 12; length++ )
+				{
+					final Matrix track = TestTracks.track( length, random );
+					final double[] p = {
+							0.02 + 0.05 * random.nextDouble(),
+							0.001 + 0.1 * random.nextDouble(),
+							0.05 + 0.1 * random.nextDouble(),
+							0.1 + 0.8 * random.nextDouble(),
+							0.1 + 0.8 * random.nextDouble() };
+
+					final Matrix[] expected = new TrackState( p[ 0 ], p[ 1 ], p[ 2 ], p[ 3 ], p[ 4 ], nbSubSteps, true, frameLen, true ).eval( track );
+					final FlatTrackState state = new FlatTrackState( p[ 0 ], p[ 1 ], p[ 2 ], p[ 3 ], p[ 4 ], nbSubSteps, true, frameLen, true );
+					final Matrix[] actual = state.eval( track );
+
+					final String msg = "nbSubSteps=" + nbSubSteps + ", frameLen=" + frameLen + ", length=" + length;
+					assertEquals( msg, expected[ 0 ].getRowDimension(), actual[ 0 ].getRowDimension() );
+					double sum = 0.;
+					for ( int r = 0; r < expected[ 0 ].getRowDimension(); r++ )
+					{
+						final double e = expected[ 0 ].get( r, 0 );
+						assertEquals( msg, e, actual[ 0 ].get( r, 0 ), TOLERANCE * Math.abs( e ) );
+						sum += e;
+					}
+					for ( int r = 0; r < length; r++ )
+						for ( int c = 0; c < 2; c++ )
+							assertEquals( msg, expected[ 1 ].get( r, c ), actual[ 1 ].get( r, c ), TOLERANCE );
+
+					final double logLikelihood = state.evalLogLikelihood( track, state.newWorkspace( track ) );
+					assertEquals( msg, Math.log( sum ), logLikelihood, TOLERANCE * Math.abs( logLikelihood ) );
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testShortTracks()
+	{
+		final Random random = new Random( 7 );
+		for ( int nbSubSteps = 1; nbSubSteps <= 2; nbSubSteps++ )
+		{
+			for ( int length = 1; length <= 2; length++ )
+			{
+				final Matrix track = TestTracks.track( length, random );
+				final FlatTrackState state = new FlatTrackState( 0.03, 0.05, 0.1, 0.5, 0.5, nbSubSteps, true, nbSubSteps + 3, true );
+				final Matrix[] actual = state.eval( track );
+
+				// Predictions are the marginals of P over the state bits.
+				final String msg = "nbSubSteps=" + nbSubSteps + ", length=" + length;
+				final Matrix P = actual[ 0 ];
+				final Matrix pred = actual[ 1 ];
+				assertEquals( msg, length, pred.getRowDimension() );
+				double sum = 0.;
+				for ( int r = 0; r < P.getRowDimension(); r++ )
+					sum += P.get( r, 0 );
+				for ( int row = 0; row < length; row++ )
+				{
+					double sum1 = 0.;
+					for ( int r = 0; r < P.getRowDimension(); r++ )
+						if ( ( ( r >> ( row * nbSubSteps ) ) & 1 ) == 1 )
+							sum1 += P.get( r, 0 );
+					assertEquals( msg, 1. - sum1 / sum, pred.get( row, 0 ), TOLERANCE );
+					assertEquals( msg, sum1 / sum, pred.get( row, 1 ), TOLERANCE );
+				}
+
+				final TrackStateWorkspace workspace = state.newWorkspace( track );
+				final Matrix predicted = state.predict( track, workspace );
+				for ( int r = 0; r < length; r++ )
+					for ( int c = 0; c < 2; c++ )
+						assertEquals( msg, pred.get( r, c ), predicted.get( r, c ), TOLERANCE );
+
+				final double logLikelihood = state.evalLogLikelihood( track, workspace );
+				assertEquals( msg, Math.log( sum ), logLikelihood, TOLERANCE * Math.abs( logLikelihood ) );
+			}
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fr.pasteur.iah.extrack.compute;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import Jama.Matrix;
+
+public class NegativeLikelihoodFunctionTest
+{
+
+	private static final double[] PARAMETERS = { 0.02, 0.01, 0.1, 0.5, 0.2 };
+
+	@Test
+	public void testBatchedSameAsSingle()
+	{
+		final Map< Integer, Matrix > tracks = TestTracks.simulate( 150, 3, 15, 1l );
+		for ( int nbSubSteps = 1; nbSubSteps <= 2; nbSubSteps++ )
+		{
+			for ( int frameLen = nbSubSteps + 2; frameLen <= 6; frameLen++ )
+			{
+				double expected = 0.;
+				for ( final Matrix track : tracks.values() )
+				{
+					final FlatTrackState state = new FlatTrackState( PARAMETERS[ 0 ], PARAMETERS[ 1 ], PARAMETERS[ 2 ], PARAMETERS[ 3 ], PARAMETERS[ 4 ], nbSubSteps, true, frameLen, false );
+					expected -= state.evalLogLikelihood( track, state.newWorkspace( track ) );
+				}
+
+				try (final NegativeLikelihoodFunction fun = new NegativeLikelihoodFunction( tracks, nbSubSteps, true, frameLen, false ))
+				{
+					final double batched = fun.evaluate( PARAMETERS );
+					fun.setBatching( false );
+					final double single = fun.evaluate( PARAMETERS );
+
+					final String msg = "nbSubSteps=" + nbSubSteps + ", frameLen=" + frameLen;
+					assertEquals( msg, expected, batched, 1e-12 * Math.abs( expected ) );
+					assertEquals( msg, expected, single, 1e-12 * Math.abs( expected ) );
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testPrunedWithoutCutoffSameAsExact()
+	{
+		final Map< Integer, Matrix > tracks = TestTracks.simulate( 100, 3, 20, 2l );
+		try (final NegativeLikelihoodFunction fun = new NegativeLikelihoodFunction( tracks, 1, true, 5, false ))
+		{
+			final double exact = fun.evaluate( PARAMETERS );
+			// A cutoff that drops nothing, and a beam larger than the states.
+			fun.setPruning( 1e3, 1 << 20 );
+			final double pruned = fun.evaluate( PARAMETERS );
+			assertEquals( exact, pruned, 1e-9 * Math.abs( exact ) );
+			assertEquals( 0., fun.getDiscardedMass(), 1e-12 );
+		}
+	}
+
+	@Test
+	public void testPrunedCloseToExact()
+	{
+		final Map< Integer, Matrix > tracks = TestTracks.simulate( 100, 3, 20, 3l );
+		try (final NegativeLikelihoodFunction fun = new NegativeLikelihoodFunction( tracks, 1, true, 6, false ))
+		{
+			final double exact = fun.evaluate( PARAMETERS );
+			fun.setPruning( 10., 0 );
+			final double pruned = fun.evaluate( PARAMETERS );
+			final double discarded = fun.getDiscardedMass();
+
+			// Pruning only drops probability mass.
+			assertTrue( "pruned " + pruned + " < exact " + exact, pruned >= exact - 1e-9 * Math.abs( exact ) );
+			assertTrue( "discarded mass " + discarded, discarded > 0. && discarded < 1e-2 );
+			assertEquals( exact, pruned, 1e-4 * Math.abs( exact ) );
+		}
+	}
+
+	@Test
+	public void testNumThreadsOfExecutor()
+	{
+		final ForkJoinPool forkJoinPool = new ForkJoinPool( 3 );
+		final ExecutorService fixedPool = Executors.newFixedThreadPool( 2 );
+		final ExecutorService cachedPool = Executors.newCachedThreadPool();
+		try
+		{
+			assertEquals( 3, NegativeLikelihoodFunction.numThreads( forkJoinPool ) );
+			assertEquals( 2, NegativeLikelihoodFunction.numThreads( fixedPool ) );
+			assertEquals( Runtime.getRuntime().availableProcessors(), NegativeLikelihoodFunction.numThreads( cachedPool ) );
+		}
+		finally
+		{
+			forkJoinPool.shutdown();
+			fixedPool.shutdown();
+			cachedPool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fr.pasteur.iah.extrack.compute;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+import fiji.plugin.trackmate.Logger;
+import fr.pasteur.iah.extrack.numpy.NumPyReader;
+import pal.math.MultivariateMinimum;
+
+/**
+ * Compares the derivative-free conjugate direction search with the L-BFGS
+ * optimizer on the same likelihood function, from the default start point.
+ * Reports for each the number of passes over the tracks, the time taken and
+ * the likelihood reached. A pass of the L-BFGS optimizer also computes the
+ * gradient, so it costs more than a pass of the conjugate direction search.
+ * <p>
+ * Runs on the tracks of the NumPy file given as argument, or on simulated
+ * two-state tracks.
+ */
+public class OptimizerBenchmarkTestDrive
+{
+
+	public static void main( final String[] args ) throws IOException
+	{
+		Locale.setDefault( Locale.ROOT );
+
+		final TrackStore store = ( args.length > 0 )
+				? NumPyReader.readTrackStore( args[ 0 ] )
+				: TrackStore.of( TestTracks.simulate( 500, 5, 20, 1l ) );
+		final ExTrackParameters startPoint = ExTrackParameters.ESTIMATION_START_POINT;
+		System.out.println( "Benchmarking on " + store.size() + " tracks, kernels: " + FlatTrackState.getKernelsDescription() );
+
+		try (final ExTrackComputeContext context = new ExTrackComputeContext())
+		{
+			for ( int repeat = 0; repeat < 2; repeat++ )
+			{
+				run( "Conjugate directions", new ConjugateDirectionSearch( Logger.VOID_LOGGER, null ), store, startPoint, context, false );
+				run( "L-BFGS", new BoundedLBFGS( Logger.VOID_LOGGER, null ), store, startPoint, context, true );
+			}
+		}
+	}
+
+	private static void run(
+			final String name,
+			final MultivariateMinimum optimizer,
+			final TrackStore store,
+			final ExTrackParameters startPoint,
+			final ExTrackComputeContext context,
+			final boolean split )
+	{
+		final double[] parameters = startPoint.optimParamstoArray();
+		// Same start point as the parameter optimizer.
+		if ( split && parameters[ 1 ] == parameters[ 2 ] )
+			parameters[ 1 ] *= 0.5;
+
+		try (final NegativeLikelihoodFunction fun = new NegativeLikelihoodFunction( store, startPoint.nbSubteps, true, startPoint.nFrames, false, context ))
+		{
+			final long start = System.nanoTime();
+			optimizer.optimize( fun, parameters, 1e-6, 1e-6 );
+			final double elapsed = ( System.nanoTime() - start ) / 1e9;
+			System.out.println( String.format( "%-22s %5d passes %8.2f s   log-likelihood %.6f   %s",
+					name, optimizer.numFun, elapsed, -fun.evaluate( parameters ), Arrays.toString( parameters ) ) );
+		}
+	}
+}
@@ -0,0 +1,62 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fr.pasteur.iah.extrack.compute;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import Jama.Matrix;
+
+public class PrunedTrackStateTest
+{
+
+	private static final double[] PARAMETERS = { 0.03, 0.05, 0.1, 0.5, 0.5 };
+
+	@Test
+	public void testPredictionsWithoutCutoffSameAsExact()
+	{
+		final Random random = new Random( 11 );
+		for ( int nbSubSteps = 1; nbSubSteps <= 2; nbSubSteps++ )
+		{
+			final int frameLen = nbSubSteps + 3;
+			final FlatTrackState exact = new FlatTrackState( PARAMETERS[ 0 ], PARAMETERS[ 1 ], PARAMETERS[ 2 ], PARAMETERS[ 3 ], PARAMETERS[ 4 ], nbSubSteps, true, frameLen, true );
+			final StateTables tables = StateTables.get( PARAMETERS[ 1 ], PARAMETERS[ 2 ], PARAMETERS[ 3 ], PARAMETERS[ 4 ], nbSubSteps );
+			final PrunedTrackState pruned = new PrunedTrackState( PARAMETERS[ 0 ], tables, true, frameLen, Double.POSITIVE_INFINITY, 0 );
+			for ( int length = 1; length <= 8; length++ )
+			{
+				final Matrix track = TestTracks.track( length, random );
+				final TrackStateWorkspace workspace = exact.newWorkspace( track );
+				final Matrix expected = exact.predict( track, workspace );
+				final Matrix actual = pruned.predict( track, workspace );
+
+				final String msg = "nbSubSteps=" + nbSubSteps + ", length=" + length;
+				assertEquals( msg, length, actual.getRowDimension() );
+				for ( int r = 0; r < length; r++ )
+					for ( int c = 0; c < 2; c++ )
+						assertEquals( msg, expected.get( r, c ), actual.get( r, c ), 1e-9 );
+			}
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fr.pasteur.iah.extrack.compute;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import Jama.Matrix;
+
+/**
+ * Simulated tracks for the tests.
+ */
+class TestTracks
+{
+
+	private TestTracks()
+	{}
+
+	/**
+	 * Tracks that switch between a diffusive and a bound state, measured with
+	 * a localization error.
+	 */
+	static Map< Integer, Matrix > simulate( final int nTracks, final int minLength, final int maxLength, final long seed )
+	{
+		final Random random = new Random( seed );
+		final Map< Integer, Matrix > tracks = new HashMap<>();
+		for ( int t = 0; t < nTracks; t++ )
+		{
+			final int length = minLength + random.nextInt( maxLength - minLength + 1 );
+			tracks.put( Integer.valueOf( t ), track( length, random ) );
+		}
+		return tracks;
+	}
+
+	static Matrix track( final int length, final Random random )
+	{
+		final Matrix track = new Matrix( length, 2 );
+		boolean bound = random.nextBoolean();
+		double x = 0.;
+		double y = 0.;
+		for ( int i = 0; i < length; i++ )
+		{
+			if ( random.nextDouble() < 0.1 )
+				bound = !bound;
+			final double d = bound ? 0.01 : 0.1;
+			x += d * random.nextGaussian();
+			y += d * random.nextGaussian();
+			track.set( i, 0, x + 0.02 * random.nextGaussian() );
+			track.set( i, 1, y + 0.02 * random.nextGaussian() );
+		}
+		return track;
+	}
+}
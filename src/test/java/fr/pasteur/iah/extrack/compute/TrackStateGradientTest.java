@@ -0,0 +1,85 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fr.pasteur.iah.extrack.compute;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+import Jama.Matrix;
+
+public class TrackStateGradientTest
+{
+
+	private static final double[] PARAMETERS = { 0.02, 0.03, 0.1, 0.4, 0.2 };
+
+	@Test
+	public void testGradientSameAsFiniteDifferences()
+	{
+		final Map< Integer, Matrix > tracks = TestTracks.simulate( 40, 3, 12, 4l );
+		for ( int nbSubSteps = 1; nbSubSteps <= 2; nbSubSteps++ )
+		{
+			try (final NegativeLikelihoodFunction fun = new NegativeLikelihoodFunction( tracks, nbSubSteps, true, nbSubSteps + 3, false ))
+			{
+				final double[] gradient = new double[ PARAMETERS.length ];
+				final double value = fun.evaluate( PARAMETERS.clone(), gradient );
+				assertEquals( fun.evaluate( PARAMETERS.clone() ), value, 1e-12 * Math.abs( value ) );
+
+				for ( int k = 0; k < PARAMETERS.length; k++ )
+				{
+					// Central differences.
+					final double h = 1e-6 * PARAMETERS[ k ];
+					final double[] plus = PARAMETERS.clone();
+					plus[ k ] += h;
+					final double[] minus = PARAMETERS.clone();
+					minus[ k ] -= h;
+					final double expected = ( fun.evaluate( plus ) - fun.evaluate( minus ) ) / ( 2. * h );
+					assertEquals( "nbSubSteps=" + nbSubSteps + ", parameter " + k, expected, gradient[ k ], 1e-5 * Math.max( 1., Math.abs( expected ) ) );
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testGradientOfClampedArgument()
+	{
+		final Map< Integer, Matrix > tracks = TestTracks.simulate( 20, 3, 12, 5l );
+		try (final NegativeLikelihoodFunction fun = new NegativeLikelihoodFunction( tracks, 1, true, 4, false ))
+		{
+			final double[] outside = PARAMETERS.clone();
+			outside[ 3 ] = fun.getUpperBound( 3 ) + 0.5;
+			final double[] clamped = PARAMETERS.clone();
+			clamped[ 3 ] = fun.getUpperBound( 3 );
+
+			final double[] gradient = new double[ PARAMETERS.length ];
+			final double[] clampedGradient = new double[ PARAMETERS.length ];
+			final double value = fun.evaluate( outside, gradient );
+			final double clampedValue = fun.evaluate( clamped, clampedGradient );
+
+			assertEquals( clampedValue, value, 0. );
+			for ( int k = 0; k < PARAMETERS.length; k++ )
+				assertEquals( "parameter " + k, ( k == 3 ) ? 0. : clampedGradient[ k ], gradient[ k ], 0. );
+		}
+	}
+}
@@ -0,0 +1,189 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fr.pasteur.iah.extrack.numpy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import fr.pasteur.iah.extrack.numpy.NumPyArray.DType;
+
+public class NumPyArrayTest
+{
+
+	private static final int N_ROWS = 7;
+
+	private static final int N_COLS = 3;
+
+	@Test
+	public void testDTypesAndOrders() throws IOException
+	{
+		final Object[][] cases = {
+				// version, descr, Fortran order, expected type
+				{ 1, "<f8", false, DType.FLOAT64 },
+				{ 2, ">f8", false, DType.FLOAT64 },
+				{ 1, "<f8", true, DType.FLOAT64 },
+				{ 3, "<f4", true, DType.FLOAT32 },
+				{ 1, ">f4", false, DType.FLOAT32 },
+				{ 1, ">i4", true, DType.INT32 },
+				{ 1, "<i8", false, DType.INT64 } };
+		for ( final Object[] c : cases )
+		{
+			final String descr = ( String ) c[ 1 ];
+			final boolean fortranOrder = ( Boolean ) c[ 2 ];
+			final Path path = write( ( Integer ) c[ 0 ], descr, fortranOrder, N_ROWS, N_COLS );
+			try
+			{
+				final String msg = descr + ( fortranOrder ? " F" : " C" );
+				assertTrue( msg, NumPyArray.isNumPy( path.toString() ) );
+				final NumPyArray array = NumPyArray.open( path.toString() );
+				assertEquals( msg, c[ 3 ], array.getDType() );
+				assertEquals( msg, descr.charAt( 0 ) == '>' ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN, array.getByteOrder() );
+				assertEquals( msg, fortranOrder, array.isFortranOrder() );
+				assertEquals( msg, N_ROWS, array.getNumRows() );
+				assertEquals( msg, N_COLS, array.getNumColumns() );
+				for ( int r = 0; r < N_ROWS; r++ )
+					for ( int col = 0; col < N_COLS; col++ )
+						assertEquals( msg, value( r, col ), array.get( r, col ), 0. );
+				for ( int col = 0; col < N_COLS; col++ )
+				{
+					final double[] column = array.readColumn( col );
+					for ( int r = 0; r < N_ROWS; r++ )
+						assertEquals( msg, value( r, col ), column[ r ], 0. );
+				}
+			}
+			finally
+			{
+				Files.delete( path );
+			}
+		}
+	}
+
+	@Test
+	public void testOneDimensional() throws IOException
+	{
+		final Path path = write( 1, "<f8", false, 5, 0 );
+		try
+		{
+			final NumPyArray array = NumPyArray.open( path.toString() );
+			assertEquals( 5, array.getNumRows() );
+			assertEquals( 1, array.getNumColumns() );
+			assertEquals( value( 4, 0 ), array.get( 4, 0 ), 0. );
+		}
+		finally
+		{
+			Files.delete( path );
+		}
+	}
+
+	@Test( expected = IOException.class )
+	public void testUnsupportedDType() throws IOException
+	{
+		final Path path = write( 1, "<u2", false, N_ROWS, N_COLS );
+		try
+		{
+			NumPyArray.open( path.toString() );
+		}
+		finally
+		{
+			Files.delete( path );
+		}
+	}
+
+	@Test
+	public void testNotNumPy() throws IOException
+	{
+		final Path path = Files.createTempFile( "extrack", ".npy" );
+		try
+		{
+			Files.write( path, "x,y\n1,2\n".getBytes( StandardCharsets.US_ASCII ) );
+			assertFalse( NumPyArray.isNumPy( path.toString() ) );
+		}
+		finally
+		{
+			Files.delete( path );
+		}
+	}
+
+	private static double value( final int row, final int col )
+	{
+		return 10 * row + col;
+	}
+
+	/**
+	 * Writes a NumPy file with the value 10 * row + col in each cell.
+	 * <code>nCols</code> 0 makes a 1D array.
+	 */
+	private static Path write( final int version, final String descr, final boolean fortranOrder, final int nRows, final int nCols ) throws IOException
+	{
+		final String shape = ( nCols > 0 ) ? "(" + nRows + ", " + nCols + ")" : "(" + nRows + ",)";
+		final StringBuilder header = new StringBuilder( "{'descr': '" + descr + "', 'fortran_order': "
+				+ ( fortranOrder ? "True" : "False" ) + ", 'shape': " + shape + ", }" );
+		final int preambleLength = ( version == 1 ) ? 10 : 12;
+		while ( ( preambleLength + header.length() + 1 ) % 64 != 0 )
+			header.append( ' ' );
+		header.append( '\n' );
+
+		final int size = Integer.parseInt( descr.substring( 2 ) );
+		final int nc = Math.max( nCols, 1 );
+		final ByteBuffer buffer = ByteBuffer.allocate( preambleLength + header.length() + nRows * nc * size )
+				.order( ByteOrder.LITTLE_ENDIAN );
+		buffer.put( new byte[] { ( byte ) 0x93, 'N', 'U', 'M', 'P', 'Y', ( byte ) version, 0 } );
+		if ( version == 1 )
+			buffer.putShort( ( short ) header.length() );
+		else
+			buffer.putInt( header.length() );
+		buffer.put( header.toString().getBytes( StandardCharsets.ISO_8859_1 ) );
+
+		buffer.order( descr.charAt( 0 ) == '>' ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN );
+		final char kind = descr.charAt( 1 );
+		for ( int k = 0; k < nRows * nc; k++ )
+		{
+			final int row = fortranOrder ? k % nRows : k / nc;
+			final int col = fortranOrder ? k / nRows : k % nc;
+			final double v = value( row, col );
+			if ( kind == 'f' && size == 8 )
+				buffer.putDouble( v );
+			else if ( kind == 'f' )
+				buffer.putFloat( ( float ) v );
+			else if ( size == 8 )
+				buffer.putLong( ( long ) v );
+			else if ( size == 4 )
+				buffer.putInt( ( int ) v );
+			else
+				buffer.putShort( ( short ) v );
+		}
+
+		final Path path = Files.createTempFile( "extrack", ".npy" );
+		Files.write( path, buffer.array() );
+		return path;
+	}
+}
@@ -0,0 +1,121 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fr.pasteur.iah.extrack.numpy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.Test;
+
+import fr.pasteur.iah.extrack.compute.TrackStore;
+import fr.pasteur.iah.extrack.numpy.NumPyTrackReader.Chunk;
+
+public class NumPyTrackReaderTest
+{
+
+	@Test
+	public void testChunks() throws IOException
+	{
+		// Track lengths between 1 and 20, IDs not sorted.
+		final Random random = new Random( 1l );
+		final int nTracks = 200;
+		final int[] lengths = new int[ nTracks ];
+		int nRows = 0;
+		for ( int t = 0; t < nTracks; t++ )
+		{
+			lengths[ t ] = 1 + random.nextInt( 20 );
+			nRows += lengths[ t ];
+		}
+
+		final Path path = Files.createTempFile( "extrack", ".npy" );
+		try
+		{
+			try (final NumPyWriter writer = new NumPyWriter( path.toString(), nRows, 4 ))
+			{
+				for ( int t = 0; t < nTracks; t++ )
+					for ( int r = 0; r < lengths[ t ]; r++ )
+						writer.writeRow( x( t, r ), y( t, r ), 10 + r, trackID( t ) );
+			}
+
+			for ( final int maxNbLocs : new int[] { 1, 7, 64, 1000, 100000 } )
+			{
+				final String msg = "maxNbLocs=" + maxNbLocs;
+				final NumPyTrackReader reader = new NumPyTrackReader( path.toString() );
+				assertEquals( msg, nRows, reader.getNumRows() );
+
+				int t = 0;
+				Chunk chunk;
+				while ( ( chunk = reader.read( maxNbLocs ) ) != null )
+				{
+					final TrackStore tracks = chunk.getTracks();
+					assertTrue( msg, tracks.size() > 0 );
+					int nLocs = 0;
+					for ( int k = 0; k < tracks.size(); k++ )
+					{
+						// Whole tracks, in the order of the file.
+						assertEquals( msg, trackID( t ), tracks.getTrackID( k ) );
+						assertEquals( msg, lengths[ t ], tracks.nbLocs( k ) );
+						for ( int r = 0; r < lengths[ t ]; r++ )
+						{
+							assertEquals( msg, x( t, r ), tracks.get( k, r, 0 ), 0. );
+							assertEquals( msg, y( t, r ), tracks.get( k, r, 1 ), 0. );
+							assertEquals( msg, 10 + r, chunk.getFrame( k, r ), 0. );
+						}
+						// No track is started once the chunk is full.
+						assertTrue( msg, nLocs < maxNbLocs || k == 0 );
+						nLocs += lengths[ t ];
+						t++;
+					}
+					// Only the last chunk may be smaller than requested.
+					assertTrue( msg, nLocs >= maxNbLocs || t == nTracks );
+				}
+				assertEquals( msg, nTracks, t );
+				assertNull( msg, reader.read( maxNbLocs ) );
+			}
+		}
+		finally
+		{
+			Files.delete( path );
+		}
+	}
+
+	private static int trackID( final int t )
+	{
+		return ( 37 * t ) % 211;
+	}
+
+	private static double x( final int t, final int r )
+	{
+		return t + 0.01 * r;
+	}
+
+	private static double y( final int t, final int r )
+	{
+		return -t - 0.01 * r;
+	}
+}
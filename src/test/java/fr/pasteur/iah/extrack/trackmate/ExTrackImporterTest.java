@@ -0,0 +1,79 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2020 - 2025 Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fr.pasteur.iah.extrack.trackmate;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ExTrackImporterTest
+{
+
+	@Test
+	public void testGroupRowsByTrack()
+	{
+		final int[] trackIDs = { 5, -2, 5, 0, -2, 7, 5, 0 };
+		final int[][] tracks = ExTrackImporter.groupRowsByTrack( trackIDs );
+		assertEquals( 4, tracks.length );
+		assertArrayEquals( new int[] { 0, 2, 6 }, tracks[ 0 ] );
+		assertArrayEquals( new int[] { 1, 4 }, tracks[ 1 ] );
+		assertArrayEquals( new int[] { 3, 7 }, tracks[ 2 ] );
+		assertArrayEquals( new int[] { 5 }, tracks[ 3 ] );
+	}
+
+	@Test
+	public void testGroupRowsByTrackSameAsScan()
+	{
+		final Random random = new Random( 1l );
+		final int[] trackIDs = new int[ 10000 ];
+		for ( int r = 0; r < trackIDs.length; r++ )
+			trackIDs[ r ] = random.nextInt( 500 ) - 250;
+
+		// Reference: one scan, tracks in the order of their first row.
+		final Map< Integer, List< Integer > > expected = new LinkedHashMap<>();
+		for ( int r = 0; r < trackIDs.length; r++ )
+			expected.computeIfAbsent( Integer.valueOf( trackIDs[ r ] ), id -> new ArrayList<>() ).add( Integer.valueOf( r ) );
+
+		final int[][] tracks = ExTrackImporter.groupRowsByTrack( trackIDs );
+		assertEquals( expected.size(), tracks.length );
+		int k = 0;
+		for ( final List< Integer > rows : expected.values() )
+		{
+			final int[] expectedRows = rows.stream().mapToInt( Integer::intValue ).toArray();
+			assertArrayEquals( "track " + k, expectedRows, tracks[ k ] );
+			k++;
+		}
+	}
+
+	@Test
+	public void testGroupRowsByTrackEmpty()
+	{
+		assertEquals( 0, ExTrackImporter.groupRowsByTrack( new int[ 0 ] ).length );
+	}
+}